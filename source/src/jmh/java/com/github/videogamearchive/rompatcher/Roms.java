@@ -0,0 +1,73 @@
+package com.github.videogamearchive.rompatcher;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+/*
+ * Original and modified roms of the benchmarks, the benchmark states take the rom as a parameter.
+ */
+public class Roms {
+    public final MarcFile original;
+    public final MarcFile modified;
+
+    private Roms(MarcFile original, MarcFile modified) {
+        this.original = original;
+        this.modified = modified;
+    }
+
+    /*
+     * - rom: "test-data" for the Kirby and Lolo test roms, or "size:rate" for a synthetic rom of size Mb with that
+     *   fraction of bytes mutated.
+     */
+    public static Roms load(String rom) throws IOException {
+        if (rom.equals("test-data")) {
+            return new Roms(new MarcFile(Path.of("test-data", "Kirby Test ROM (World).nes")),
+                    new MarcFile(Path.of("test-data", "Lolo Test ROM (World) [Themed by Hackermans (v1.1)].nes")));
+        }
+        String[] sizeAndRate = rom.split(":");
+        byte[] source = synthetic(Integer.parseInt(sizeAndRate[0]) * 1048576);
+        return new Roms(new MarcFile(source), new MarcFile(mutate(source, Double.parseDouble(sizeAndRate[1]))));
+    }
+
+    /*
+     * Rom like data, random code and data with runs of fill bytes between them.
+     */
+    private static byte[] synthetic(int size) {
+        Random random = new Random(size);
+        byte[] bytes = new byte[size];
+        random.nextBytes(bytes);
+        for (int offset = 0; offset < size; offset += 4096) {
+            int fill = random.nextInt(1024);
+            Arrays.fill(bytes, offset, Math.min(size, offset + fill), (byte) (random.nextBoolean() ? 0x00 : 0xff));
+        }
+        return bytes;
+    }
+
+    /*
+     * Same size copy with about rate * size bytes changed, in runs of 1 to 32 bytes, a quarter of them filled.
+     */
+    private static byte[] mutate(byte[] source, double rate) {
+        Random random = new Random(source.length + Double.hashCode(rate));
+        byte[] bytes = source.clone();
+        long mutated = 0;
+        while (mutated < rate * bytes.length) {
+            int length = 1 + random.nextInt(32);
+            int offset = random.nextInt(bytes.length - length);
+            if (random.nextInt(4) == 0) {
+                Arrays.fill(bytes, offset, offset + length, (byte) random.nextInt());
+            } else {
+                for (int i = 0; i < length; i++) {
+                    bytes[offset + i] = (byte) random.nextInt();
+                }
+            }
+            mutated += length;
+        }
+        return bytes;
+    }
+
+    public static double megabytes(MarcFile file) {
+        return file.fileSize / 1048576.0;
+    }
+}
@@ -0,0 +1,70 @@
+package com.github.videogamearchive.rompatcher.formats;
+
+import com.github.videogamearchive.rompatcher.MarcFile;
+import com.github.videogamearchive.rompatcher.Roms;
+import com.github.videogamearchive.rompatcher.Throughput;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * IPS offsets are 24 bits, so there are no 64 Mb roms. IPS has a single way to create patches, runs of differing bytes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class IPSBenchmark {
+    @Param({"test-data", "4:0.001", "4:0.01", "16:0.001", "16:0.01"})
+    public String rom;
+
+    private Roms roms;
+    private MarcFile patch;
+    private IPS parsedPatch;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        roms = Roms.load(rom);
+        patch = create().export();
+        parsedPatch = IPS.parseIPSFile(patch);
+    }
+
+    @Benchmark
+    public IPS parse(Throughput throughput) {
+        throughput.megabytes += Roms.megabytes(patch);
+        return IPS.parseIPSFile(patch);
+    }
+
+    @Benchmark
+    public MarcFile apply(Throughput throughput) {
+        throughput.megabytes += Roms.megabytes(roms.modified);
+        return parsedPatch.apply(roms.original);
+    }
+
+    @Benchmark
+    public IPS create(Throughput throughput) {
+        throughput.megabytes += Roms.megabytes(roms.modified);
+        return create();
+    }
+
+    private IPS create() {
+        // the IPS encoder reads both files sequentially from their current offset
+        roms.original.seek(0);
+        roms.modified.seek(0);
+        return IPS.createIPSFromFiles(roms.original, roms.modified);
+    }
+}
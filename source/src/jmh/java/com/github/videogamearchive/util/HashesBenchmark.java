@@ -0,0 +1,59 @@
+package com.github.videogamearchive.util;
+
+import com.github.videogamearchive.rompatcher.CRC;
+import com.github.videogamearchive.rompatcher.MarcFile;
+import com.github.videogamearchive.rompatcher.Roms;
+import com.github.videogamearchive.rompatcher.Throughput;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class HashesBenchmark {
+    @Param({"test-data", "4:0.001", "16:0.001", "64:0.001"})
+    public String rom;
+
+    private MarcFile file;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        file = Roms.load(rom).modified;
+    }
+
+    @Benchmark
+    public long crc32(Throughput throughput) {
+        throughput.megabytes += Roms.megabytes(file);
+        return CRC.crc32(file);
+    }
+
+    @Benchmark
+    public Hashes.Digests digests(Throughput throughput) throws NoSuchAlgorithmException {
+        throughput.megabytes += Roms.megabytes(file);
+        return Hashes.getDigests(file.asByteBuffer(), null);
+    }
+
+    @Benchmark
+    public Hashes.Digests digestsParallel(Throughput throughput) throws NoSuchAlgorithmException {
+        throughput.megabytes += Roms.megabytes(file);
+        return Hashes.getDigests(file.asByteBuffer(), ForkJoinPool.commonPool());
+    }
+}
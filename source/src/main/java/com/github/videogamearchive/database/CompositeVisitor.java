@@ -0,0 +1,83 @@
+package com.github.videogamearchive.database;
+
+import com.github.videogamearchive.model.Identifiable;
+
+import java.io.File;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+
+/*
+ * Several visitors fed by a single walk, they share the systems, games and releases it reads.
+ * Each visitor gets its own chain of calls on the workers, so it still sees the walk order one call at a time, while
+ * the visitors run concurrently with each other and with the walk. A slow visitor, as the romset, doesn't hold the others.
+ * A visitor that fails is not called anymore, the others go on, finish throws its error once they are done.
+ */
+public class CompositeVisitor implements DatabaseVisitor {
+    private final ForkJoinPool workers;
+    private final DatabaseVisitor[] visitors;
+    private final CompletableFuture<?>[] chains; // last call of each visitor
+
+    public CompositeVisitor(ForkJoinPool workers, DatabaseVisitor... visitors) {
+        this.workers = workers;
+        this.visitors = visitors;
+        this.chains = new CompletableFuture<?>[visitors.length];
+        for (int i = 0; i < visitors.length; i++) {
+            chains[i] = CompletableFuture.completedFuture(null);
+        }
+    }
+
+    /*
+     * Releases are validated once for all the visitors when any of them validates.
+     */
+    @Override
+    public boolean validate() {
+        for (DatabaseVisitor visitor:visitors) {
+            if (visitor.validate()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * Called in walk order, the calls are chained in that same order.
+     */
+    @Override
+    public void walk(File identifiableFolder, Identifiable identifiable) {
+        for (int i = 0; i < visitors.length; i++) {
+            DatabaseVisitor visitor = visitors[i];
+            chains[i] = chains[i].thenRunAsync(() -> visitor.walk(identifiableFolder, identifiable), workers);
+        }
+    }
+
+    /*
+     * Waits for the visitors to see the whole walk, then finishes them concurrently.
+     * Visitors that failed are not finished, the first error is thrown once the others are.
+     */
+    @Override
+    public void finish() throws Exception {
+        for (int i = 0; i < visitors.length; i++) {
+            DatabaseVisitor visitor = visitors[i];
+            chains[i] = chains[i].thenRunAsync(() -> {
+                try {
+                    visitor.finish();
+                } catch (Exception e) {
+                    throw new CompletionException(e);
+                }
+            }, workers);
+        }
+        Throwable error = null;
+        for (CompletableFuture<?> chain:chains) {
+            try {
+                chain.join();
+            } catch (CompletionException e) {
+                if (error == null) {
+                    error = e.getCause();
+                }
+            }
+        }
+        if (error instanceof Exception e) throw e;
+        if (error instanceof Error er) throw er;
+    }
+}
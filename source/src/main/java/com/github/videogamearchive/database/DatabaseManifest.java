@@ -0,0 +1,147 @@
+package com.github.videogamearchive.database;
+
+import com.github.videogamearchive.model.json.JSONMapper;
+import com.github.videogamearchive.rompatcher.formats.BPS;
+import com.github.videogamearchive.util.CSV;
+import org.apache.commons.csv.CSVRecord;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * Release folders as found by the last walk, to replay unchanged releases without reading or validating them again.
+ * A release is unchanged when its files have the same size and modification time, or else the same content: the same
+ * romhack.json text and romhack.bps patch checksum. Thread-safe, releases are checked from the walk workers.
+ * Only validating walks save time with it, the tools don't use it otherwise.
+ */
+public class DatabaseManifest {
+    public static final String FILE_SUFFIX = "-manifest.csv";
+    // a manifest without these headers, as from another version, is ignored
+    private static final String[] HEADERS = new String[] {
+            "Folder", "JSON Size", "JSON Modified", "BPS Size", "BPS Modified", "BPS Checksum", "Original", "Validated", "Romhack"
+    };
+
+    /*
+     * - folder: release folder path from the database folder, as system/game/release.
+     * - original: romhack-original contents, folder names end with /.
+     * - romhack: romhack.json text, replayed instead of reading the file.
+     * - validated: the release passed validation with these contents.
+     */
+    public record ReleaseEntry(
+            String folder,
+            long jsonSize,
+            long jsonModified,
+            long bpsSize,
+            long bpsModified,
+            long bpsChecksum,
+            String original,
+            boolean validated,
+            String romhack) {
+
+        public ReleaseEntry withValidated() {
+            return new ReleaseEntry(folder, jsonSize, jsonModified, bpsSize, bpsModified, bpsChecksum, original, true, romhack);
+        }
+
+        private String[] row() {
+            return new String[] {
+                    folder, Long.toString(jsonSize), Long.toString(jsonModified), Long.toString(bpsSize), Long.toString(bpsModified),
+                    Long.toString(bpsChecksum), original, Boolean.toString(validated), romhack
+            };
+        }
+
+        private static ReleaseEntry of(CSVRecord row) {
+            return new ReleaseEntry(row.get(HEADERS[0]), Long.parseLong(row.get(HEADERS[1])), Long.parseLong(row.get(HEADERS[2])),
+                    Long.parseLong(row.get(HEADERS[3])), Long.parseLong(row.get(HEADERS[4])), Long.parseLong(row.get(HEADERS[5])),
+                    row.get(HEADERS[6]), Boolean.parseBoolean(row.get(HEADERS[7])), row.get(HEADERS[8]));
+        }
+    }
+
+    private final Path path;
+    private final Map<String, ReleaseEntry> previous = new HashMap<>();
+    private final Map<String, ReleaseEntry> current = new ConcurrentHashMap<>();
+
+    private DatabaseManifest(Path path) {
+        this.path = path;
+    }
+
+    /*
+     * The manifest of a database folder, next to it: database-manifest.csv for the database folder.
+     */
+    public static Path path(File databaseFolder) {
+        File folder = databaseFolder.getAbsoluteFile();
+        return folder.toPath().resolveSibling(folder.getName() + FILE_SUFFIX);
+    }
+
+    /*
+     * Reads the manifest of the last walk, it starts empty when the file is missing or from another version.
+     */
+    public static DatabaseManifest load(Path path) throws IOException {
+        DatabaseManifest manifest = new DatabaseManifest(path);
+        if (Files.exists(path)) {
+            List<CSVRecord> rows = CSV.read(path);
+            for (String header:HEADERS) {
+                if (!rows.isEmpty() && !rows.get(0).isMapped(header)) {
+                    return manifest;
+                }
+            }
+            for (CSVRecord row:rows) {
+                ReleaseEntry entry = ReleaseEntry.of(row);
+                manifest.previous.put(entry.folder(), entry);
+            }
+        }
+        return manifest;
+    }
+
+    /*
+     * Writes the releases found by the last walk, the ones not found anymore are dropped.
+     */
+    public void save() throws IOException {
+        List<String[]> rows = new ArrayList<>(current.size());
+        for (ReleaseEntry entry:new TreeMap<>(current).values()) {
+            rows.add(entry.row());
+        }
+        CSV.write(path, HEADERS, rows);
+    }
+
+    /*
+     * Entry for the release files, the previous one when they didn't change, or a new one not validated yet.
+     * Only reads romhack.json and the romhack.bps footer when the size or modification time changed.
+     */
+    ReleaseEntry check(String folder, Path romhackJSON, BasicFileAttributes json, Path romhackBPS, BasicFileAttributes bps, String original) throws IOException {
+        long jsonModified = json.lastModifiedTime().toMillis();
+        long bpsModified = bps.lastModifiedTime().toMillis();
+
+        ReleaseEntry entry = previous.get(folder);
+        if (entry != null && entry.original().equals(original) &&
+                entry.jsonSize() == json.size() && entry.jsonModified() == jsonModified &&
+                entry.bpsSize() == bps.size() && entry.bpsModified() == bpsModified) {
+            return entry;
+        }
+
+        String romhack = Files.readString(romhackJSON, JSONMapper.DEFAULT_CHARSET);
+        long bpsChecksum = BPS.readHeader(romhackBPS).patchChecksum();
+        boolean validated = entry != null && entry.validated() && entry.original().equals(original) &&
+                entry.romhack().equals(romhack) && entry.bpsChecksum() == bpsChecksum;
+        return new ReleaseEntry(folder, json.size(), jsonModified, bps.size(), bpsModified, bpsChecksum, original, validated, romhack);
+    }
+
+    /*
+     * Keeps the releases of the last walk, when they are known unchanged without walking them.
+     */
+    void keep() {
+        current.putAll(previous);
+    }
+
+    void put(ReleaseEntry entry) {
+        current.put(entry.folder(), entry);
+    }
+}
@@ -0,0 +1,513 @@
+package com.github.videogamearchive.database;
+
+import com.github.videogamearchive.model.Game;
+import com.github.videogamearchive.model.Hack;
+import com.github.videogamearchive.model.Identifiable;
+import com.github.videogamearchive.model.Info;
+import com.github.videogamearchive.model.Label;
+import com.github.videogamearchive.model.Media;
+import com.github.videogamearchive.model.MediaType;
+import com.github.videogamearchive.model.Provenance;
+import com.github.videogamearchive.model.Release;
+import com.github.videogamearchive.model.Rom;
+import com.github.videogamearchive.model.Source;
+import com.github.videogamearchive.model.Status;
+import com.github.videogamearchive.model.System_;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.RecordComponent;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * The systems, games and releases of a walk compiled into one file, to replay them without reading the database.
+ * The file is mapped, records are decoded the first time they are asked for. Thread-safe, records are immutable and
+ * a record decoded twice by a race is just the same record.
+ *
+ * Layout, big endian:
+ * - header: magic, version, schema, database fingerprint, validated, database folder, events, strings and records length.
+ * - events: kind, folder and record offset of each walked system, game or release, in walk order.
+ * - string offsets: into the string data, one more than strings to delimit the last one.
+ * - records: the record fields, strings as string indexes, -1 for null.
+ * - string data: UTF-8, each string once.
+ */
+public class DatabaseSnapshot {
+    public static final String FILE_SUFFIX = "-snapshot.bin";
+    private static final int MAGIC = 0x56474153; // VGAS
+    private static final int VERSION = 2; // bumped when the layout changes, other versions are ignored
+    // the records encoded, snapshots of other model versions are ignored
+    private static final long SCHEMA = schema(System_.class, Game.class, Release.class, Info.class, Provenance.class, Rom.class,
+            Hack.class, Media.class, Status.class, Source.class, Label.class, MediaType.class);
+    private static final int FINGERPRINT_SIZE = 32;
+    private static final int HEADER_SIZE = 4 + 4 + 8 + FINGERPRINT_SIZE + 1 + 4 + 4 + 4 + 4;
+    private static final int EVENT_SIZE = 4 + 4 + 4;
+    private static final int SYSTEM = 0;
+    private static final int GAME = 1;
+    private static final int RELEASE = 2;
+
+    private final ByteBuffer data;
+    private final byte[] fingerprint = new byte[FINGERPRINT_SIZE];
+    private final boolean validated;
+    private final int databaseFolder;
+    private final int events;
+    private final int stringOffsets;
+    private final int records;
+    private final int stringData;
+    private final String[] strings;
+    private final Identifiable[] identifiables;
+
+    private DatabaseSnapshot(ByteBuffer data) {
+        this.data = data;
+        data.get(16, fingerprint);
+        int offset = 16 + FINGERPRINT_SIZE;
+        this.validated = data.get(offset) != 0;
+        this.databaseFolder = data.getInt(offset + 1);
+        this.events = data.getInt(offset + 5);
+        int stringCount = data.getInt(offset + 9);
+        int recordsLength = data.getInt(offset + 13);
+        this.stringOffsets = HEADER_SIZE + events * EVENT_SIZE;
+        this.records = stringOffsets + (stringCount + 1) * 4;
+        this.stringData = records + recordsLength;
+        this.strings = new String[stringCount];
+        this.identifiables = new Identifiable[events];
+    }
+
+    /*
+     * The snapshot of a database folder, next to it: database-snapshot.bin for the database folder.
+     */
+    public static Path path(File databaseFolder) {
+        File folder = databaseFolder.getAbsoluteFile();
+        return folder.toPath().resolveSibling(folder.getName() + FILE_SUFFIX);
+    }
+
+    /*
+     * Maps the snapshot, null when the file is missing or from another version or model.
+     */
+    public static DatabaseSnapshot load(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return null;
+        }
+        ByteBuffer data;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (data.limit() < HEADER_SIZE || data.getInt(0) != MAGIC || data.getInt(4) != VERSION || data.getLong(8) != SCHEMA) {
+            return null;
+        }
+        return new DatabaseSnapshot(data);
+    }
+
+    /*
+     * The releases were validated when compiled.
+     */
+    public boolean validated() {
+        return validated;
+    }
+
+    /*
+     * The snapshot was compiled from this database folder, and its files still have the same names, sizes and
+     * modification times as when the walk started.
+     */
+    public boolean isCurrent(File databaseFolder) throws IOException {
+        return string(this.databaseFolder).equals(databaseFolder.getCanonicalPath()) &&
+                Arrays.equals(fingerprint, DatabaseWalker.fingerprint(databaseFolder.toPath()));
+    }
+
+    /*
+     * Number of systems, games and releases, in walk order.
+     */
+    public int size() {
+        return events;
+    }
+
+    public File folder(File databaseFolder, int index) {
+        String[] names = string(data.getInt(HEADER_SIZE + index * EVENT_SIZE + 4)).split("/");
+        return Path.of(databaseFolder.getPath(), names).toFile();
+    }
+
+    public Identifiable identifiable(int index) {
+        Identifiable identifiable = identifiables[index];
+        if (identifiable == null) {
+            identifiable = decode(index);
+            identifiables[index] = identifiable;
+        }
+        return identifiable;
+    }
+
+    private Identifiable decode(int index) {
+        int event = HEADER_SIZE + index * EVENT_SIZE;
+        int kind = data.getInt(event);
+        Reader reader = new Reader(records + data.getInt(event + 8));
+        if (kind == SYSTEM) {
+            return new System_(reader.string(), reader.nullableLong());
+        } else if (kind == GAME) {
+            return new Game(reader.string(), reader.nullableLong());
+        } else {
+            System_ system = (System_) identifiable(reader.integer());
+            Game game = (Game) identifiable(reader.integer());
+            String[] names = string(data.getInt(event + 4)).split("/");
+            return new ExtendedRelease(names[0], system, names[1], game, names[2], reader.release());
+        }
+    }
+
+    private String string(int index) {
+        if (index == -1) {
+            return null;
+        }
+        String string = strings[index];
+        if (string == null) {
+            int start = data.getInt(stringOffsets + index * 4);
+            byte[] bytes = new byte[data.getInt(stringOffsets + (index + 1) * 4) - start];
+            data.get(stringData + start, bytes);
+            string = new String(bytes, StandardCharsets.UTF_8);
+            strings[index] = string;
+        }
+        return string;
+    }
+
+    /*
+     * Hash of the components of the records and the constants of the enums, as declared.
+     */
+    private static long schema(Class<?>... types) {
+        StringBuilder schema = new StringBuilder();
+        for (Class<?> type:types) {
+            schema.append(type.getName());
+            if (type.isRecord()) {
+                for (RecordComponent component:type.getRecordComponents()) {
+                    schema.append(' ').append(component.getGenericType().getTypeName()).append(' ').append(component.getName());
+                }
+            } else {
+                for (Object constant:type.getEnumConstants()) {
+                    schema.append(' ').append(constant);
+                }
+            }
+            schema.append('\n');
+        }
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(schema.toString().getBytes(StandardCharsets.UTF_8));
+            return ByteBuffer.wrap(digest).getLong();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /*
+     * Decodes the fields of a record, from its offset on.
+     */
+    private class Reader {
+        private int offset;
+
+        private Reader(int offset) {
+            this.offset = offset;
+        }
+
+        private int integer() {
+            int value = data.getInt(offset);
+            offset += 4;
+            return value;
+        }
+
+        private boolean present() {
+            return data.get(offset++) != 0;
+        }
+
+        private Long nullableLong() {
+            if (!present()) {
+                return null;
+            }
+            long value = data.getLong(offset);
+            offset += 8;
+            return value;
+        }
+
+        private Boolean nullableBoolean() {
+            byte value = data.get(offset++);
+            return value == -1 ? null : value != 0;
+        }
+
+        private String string() {
+            return DatabaseSnapshot.this.string(integer());
+        }
+
+        private <E extends Enum<E>> E enumValue(Class<E> type) {
+            String name = string();
+            return name == null ? null : Enum.valueOf(type, name);
+        }
+
+        private List<String> strings() {
+            int size = integer();
+            if (size == -1) {
+                return null;
+            }
+            List<String> list = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                list.add(string());
+            }
+            return list;
+        }
+
+        private Release release() {
+            Long id = nullableLong();
+            Info info = present() ? new Info(string(), nullableBoolean(), enumValue(Status.class), nullableBoolean(), nullableBoolean(), nullableBoolean(), nullableBoolean()) : null;
+            Provenance provenance = present() ? new Provenance(string(), string(), enumValue(Source.class), string()) : null;
+            Rom rom = present() ? new Rom(nullableLong(), string(), string(), string()) : null;
+            int size = integer();
+            List<Hack> hacks = size == -1 ? null : new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                hacks.add(hack());
+            }
+            return new Release(id, info, provenance, rom, hacks);
+        }
+
+        private Hack hack() {
+            Long id = nullableLong();
+            String name = string();
+            List<String> authors = strings();
+            String shortAuthors = string();
+            String url = string();
+            List<String> otherUrls = strings();
+            String version = string();
+            String releaseDate = string();
+            List<String> options = strings();
+            String shortOptions = string();
+            int size = integer();
+            List<Label> labels = size == -1 ? null : new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                labels.add(enumValue(Label.class));
+            }
+            size = integer();
+            List<Media> medias = size == -1 ? null : new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                medias.add(new Media(string(), string(), enumValue(MediaType.class)));
+            }
+            return new Hack(id, name, authors, shortAuthors, url, otherUrls, version, releaseDate, options, shortOptions, labels, medias);
+        }
+    }
+
+    /*
+     * Compiles a walk into a snapshot, written on finish. The walk must be of the whole database folder.
+     */
+    public static class Writer implements DatabaseVisitor {
+        private final Path path;
+        private final Path databaseFolder;
+        private final boolean validate;
+        private final byte[] fingerprint; // before the walk, so changes during it make the snapshot stale
+        private final ByteArrayOutputStream eventBytes = new ByteArrayOutputStream();
+        private final DataOutputStream eventOutput = new DataOutputStream(eventBytes);
+        private final ByteArrayOutputStream recordBytes = new ByteArrayOutputStream();
+        private final DataOutputStream recordOutput = new DataOutputStream(recordBytes);
+        private final Map<String, Integer> stringIndexes = new HashMap<>();
+        private final List<String> strings = new ArrayList<>();
+        private int events;
+        private int systemEvent = -1; // last system and game walked, the ones of the next releases
+        private int gameEvent = -1;
+
+        public Writer(Path path, File databaseFolder, boolean validate) throws IOException {
+            this.path = path;
+            this.databaseFolder = databaseFolder.toPath();
+            this.validate = validate;
+            this.fingerprint = DatabaseWalker.fingerprint(this.databaseFolder);
+        }
+
+        @Override
+        public boolean validate() {
+            return validate;
+        }
+
+        @Override
+        public void walk(File identifiableFolder, Identifiable identifiable) {
+            try {
+                List<String> names = new ArrayList<>();
+                for (Path name:databaseFolder.relativize(identifiableFolder.toPath())) {
+                    names.add(name.toString());
+                }
+                int kind;
+                int record = recordOutput.size();
+                if (identifiable instanceof System_ system) {
+                    kind = SYSTEM;
+                    writeString(system.name());
+                    writeNullableLong(system.id());
+                    systemEvent = events;
+                } else if (identifiable instanceof Game game) {
+                    kind = GAME;
+                    writeString(game.name());
+                    writeNullableLong(game.id());
+                    gameEvent = events;
+                } else {
+                    kind = RELEASE;
+                    recordOutput.writeInt(systemEvent);
+                    recordOutput.writeInt(gameEvent);
+                    writeRelease(((ExtendedRelease) identifiable).romhack());
+                }
+                eventOutput.writeInt(kind);
+                eventOutput.writeInt(index(String.join("/", names)));
+                eventOutput.writeInt(record);
+                events++;
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        /*
+         * Written to a temporary file moved over the snapshot, readers never see a partial one.
+         */
+        @Override
+        public void finish() throws IOException {
+            int databaseFolderIndex = index(databaseFolder.toFile().getCanonicalPath());
+            List<byte[]> encoded = new ArrayList<>(strings.size());
+            ByteBuffer stringOffsets = ByteBuffer.allocate((strings.size() + 1) * 4);
+            int offset = 0;
+            stringOffsets.putInt(offset);
+            for (String string:strings) {
+                byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+                encoded.add(bytes);
+                offset += bytes.length;
+                stringOffsets.putInt(offset);
+            }
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC);
+            header.putInt(VERSION);
+            header.putLong(SCHEMA);
+            header.put(fingerprint);
+            header.put((byte) (validate ? 1 : 0));
+            header.putInt(databaseFolderIndex);
+            header.putInt(events);
+            header.putInt(strings.size());
+            header.putInt(recordOutput.size());
+
+            Path temp = Files.createTempFile(path.toAbsolutePath().getParent(), "snapshot", ".tmp");
+            try {
+                try (DataOutputStream output = new DataOutputStream(Files.newOutputStream(temp))) {
+                    output.write(header.array());
+                    eventBytes.writeTo(output);
+                    output.write(stringOffsets.array());
+                    recordBytes.writeTo(output);
+                    for (byte[] bytes:encoded) {
+                        output.write(bytes);
+                    }
+                }
+                Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        }
+
+        private int index(String string) {
+            Integer index = stringIndexes.get(string);
+            if (index == null) {
+                index = strings.size();
+                strings.add(string);
+                stringIndexes.put(string, index);
+            }
+            return index;
+        }
+
+        private void writeString(String string) throws IOException {
+            recordOutput.writeInt(string == null ? -1 : index(string));
+        }
+
+        private void writeEnum(Enum<?> value) throws IOException {
+            writeString(value == null ? null : value.name());
+        }
+
+        private void writeNullableLong(Long value) throws IOException {
+            recordOutput.writeBoolean(value != null);
+            if (value != null) {
+                recordOutput.writeLong(value);
+            }
+        }
+
+        private void writeNullableBoolean(Boolean value) throws IOException {
+            recordOutput.writeByte(value == null ? -1 : value ? 1 : 0);
+        }
+
+        private void writeStrings(List<String> strings) throws IOException {
+            recordOutput.writeInt(strings == null ? -1 : strings.size());
+            if (strings != null) {
+                for (String string:strings) {
+                    writeString(string);
+                }
+            }
+        }
+
+        private void writeRelease(Release romhack) throws IOException {
+            writeNullableLong(romhack.id());
+            Info info = romhack.info();
+            recordOutput.writeBoolean(info != null);
+            if (info != null) {
+                writeString(info.name());
+                writeNullableBoolean(info.translatedTitle());
+                writeEnum(info.status());
+                writeNullableBoolean(info.adult());
+                writeNullableBoolean(info.offensive());
+                writeNullableBoolean(info.obsoleteVersion());
+                writeNullableBoolean(info.backCatalog());
+            }
+            Provenance provenance = romhack.provenance();
+            recordOutput.writeBoolean(provenance != null);
+            if (provenance != null) {
+                writeString(provenance.retrievedBy());
+                writeString(provenance.retrievedDate());
+                writeEnum(provenance.source());
+                writeString(provenance.notes());
+            }
+            Rom rom = romhack.rom();
+            recordOutput.writeBoolean(rom != null);
+            if (rom != null) {
+                writeNullableLong(rom.size());
+                writeString(rom.crc32());
+                writeString(rom.md5());
+                writeString(rom.sha1());
+            }
+            recordOutput.writeInt(romhack.hacks() == null ? -1 : romhack.hacks().size());
+            if (romhack.hacks() != null) {
+                for (Hack hack:romhack.hacks()) {
+                    writeHack(hack);
+                }
+            }
+        }
+
+        private void writeHack(Hack hack) throws IOException {
+            writeNullableLong(hack.id());
+            writeString(hack.name());
+            writeStrings(hack.authors());
+            writeString(hack.shortAuthors());
+            writeString(hack.url());
+            writeStrings(hack.otherUrls());
+            writeString(hack.version());
+            writeString(hack.releaseDate());
+            writeStrings(hack.options());
+            writeString(hack.shortOptions());
+            recordOutput.writeInt(hack.labels() == null ? -1 : hack.labels().size());
+            if (hack.labels() != null) {
+                for (Label label:hack.labels()) {
+                    writeEnum(label);
+                }
+            }
+            recordOutput.writeInt(hack.medias() == null ? -1 : hack.medias().size());
+            if (hack.medias() != null) {
+                for (Media media:hack.medias()) {
+                    writeString(media.url());
+                    writeString(media.filename());
+                    writeEnum(media.type());
+                }
+            }
+        }
+    }
+}
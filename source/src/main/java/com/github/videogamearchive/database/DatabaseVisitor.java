@@ -9,4 +9,19 @@ public interface DatabaseVisitor {
     boolean validate();
     void walk(File identifiableFolder, Identifiable identifiable);
 
+    /*
+     * When walked by workers, concurrent visitors are called from them as soon as each release is processed, in any order
+     * and from several threads at once. A system and game are still visited before their releases.
+     * Otherwise the visitor is called from the walking thread in the same order as a sequential walk.
+     */
+    default boolean concurrent() {
+        return false;
+    }
+
+    /*
+     * Called by the tools once the database is walked, to write what the visitor collected.
+     */
+    default void finish() throws Exception {
+    }
+
 }
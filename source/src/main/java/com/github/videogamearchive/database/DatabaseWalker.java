@@ -1,6 +1,7 @@
 package com.github.videogamearchive.database;
 
 import com.github.videogamearchive.model.Game;
+import com.github.videogamearchive.model.Identifiable;
 import com.github.videogamearchive.model.Release;
 import com.github.videogamearchive.model.System_;
 import com.github.videogamearchive.model.json.GameMapper;
@@ -10,8 +11,24 @@ import com.github.videogamearchive.model.validator.ReleaseValidator;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
 
+/*
+ * Folders are listed once with the attributes of their entries, each entry is stat'ed once, by the listing.
+ */
 public class DatabaseWalker {
     public static final String SYSTEM_JSON = "system.json";
     public static final String GAME_JSON = "game.json";
@@ -20,86 +37,328 @@ public class DatabaseWalker {
     public static final String ROMHACK_ORIGINAL = "romhack-original";
 
     public static void processDatabase(File databaseFolder, DatabaseVisitor identifiableVisitor) throws IOException, ReflectiveOperationException {
-        for (File systemFolder: databaseFolder.listFiles()) {
-            processSystem(systemFolder, identifiableVisitor);
+        processDatabase(databaseFolder, identifiableVisitor, null);
+    }
+
+    /*
+     * Release folders, their JSON parsing and validation, are processed by the workers, systems and games on the caller thread.
+     * Visitors are called as DatabaseVisitor.concurrent declares, in walk order from the caller thread unless they are concurrent.
+     * - workers: null to process the whole database on the caller thread.
+     */
+    public static void processDatabase(File databaseFolder, DatabaseVisitor identifiableVisitor, ForkJoinPool workers) throws IOException, ReflectiveOperationException {
+        processDatabase(databaseFolder, identifiableVisitor, workers, null);
+    }
+
+    /*
+     * Releases unchanged since the last walk are replayed from the manifest, without reading their files or validating
+     * them again when they were already validated. The manifest is updated with the walked releases, callers save it.
+     * Reading a release is cheaper than checking it, so the manifest only pays off when the visitor validates.
+     * - manifest: null to read every release.
+     */
+    public static void processDatabase(File databaseFolder, DatabaseVisitor identifiableVisitor, ForkJoinPool workers, DatabaseManifest manifest) throws IOException, ReflectiveOperationException {
+        List<Visit> visits = new ArrayList<>();
+        try {
+            for (FolderEntry systemFolder: list(databaseFolder.toPath())) {
+                processSystem(systemFolder, identifiableVisitor, workers, manifest, visits);
+            }
+            for (Visit visit:visits) {
+                visit.deliver(identifiableVisitor);
+            }
+        } finally {
+            for (Visit visit:visits) {
+                visit.cancel(); // after a failure, releases not started yet are not processed
+            }
+        }
+    }
+
+    /*
+     * Replays the snapshot instead of walking when it was compiled from this database folder with the same systems,
+     * games and release files, and with validation when the visitor validates. Visitors are called from the caller
+     * thread in walk order. The manifest keeps its releases, they didn't change.
+     * - snapshot: null to walk the database.
+     */
+    public static void processDatabase(File databaseFolder, DatabaseVisitor identifiableVisitor, ForkJoinPool workers, DatabaseManifest manifest, DatabaseSnapshot snapshot) throws IOException, ReflectiveOperationException {
+        if (snapshot == null || (identifiableVisitor.validate() && !snapshot.validated()) || !snapshot.isCurrent(databaseFolder)) {
+            processDatabase(databaseFolder, identifiableVisitor, workers, manifest);
+            return;
+        }
+        System.out.println("Replaying snapshot of: " + databaseFolder.getPath());
+        for (int i = 0; i < snapshot.size(); i++) {
+            identifiableVisitor.walk(snapshot.folder(databaseFolder, i), snapshot.identifiable(i));
+        }
+        if (manifest != null) {
+            manifest.keep();
+        }
+    }
+
+    /*
+     * Hash of the names of the systems, games, releases, their files and the romhack-original contents, with the size and
+     * modification time of the files, in name order. Any change a walk or its validation would see changes it, files
+     * restored with older modification times included, as the manifest compares them.
+     */
+    static byte[] fingerprint(Path databaseFolder) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        fingerprint(digest, databaseFolder, "", 5);
+        return digest.digest();
+    }
+
+    private static void fingerprint(MessageDigest digest, Path folder, String prefix, int depth) throws IOException {
+        List<FolderEntry> entries = list(folder);
+        entries.sort(Comparator.comparing(entry -> entry.path().getFileName().toString()));
+        for (FolderEntry entry:entries) {
+            String name = prefix + entry.path().getFileName();
+            BasicFileAttributes attributes = entry.attributes();
+            if (attributes.isDirectory()) {
+                digest.update((name + "/\n").getBytes(StandardCharsets.UTF_8));
+                if (depth > 1) {
+                    fingerprint(digest, entry.path(), name + "/", depth - 1);
+                }
+            } else {
+                digest.update((name + "\t" + attributes.size() + "\t" + attributes.lastModifiedTime().toMillis() + "\n").getBytes(StandardCharsets.UTF_8));
+            }
         }
     }
 
     public static void processSystem(File systemFolder, DatabaseVisitor identifiableVisitor) throws IOException, ReflectiveOperationException {
+        if (!systemFolder.isDirectory()) {
+            ignored(systemFolder);
+            return;
+        }
+        FolderEntry entry = new FolderEntry(systemFolder.toPath(), Files.readAttributes(systemFolder.toPath(), BasicFileAttributes.class));
+        processSystem(entry, identifiableVisitor, null, null, null);
+    }
+
+    /*
+     * Visits the system and its games, or queues them as visits when delivered in walk order from the workers.
+     */
+    private static void processSystem(FolderEntry systemEntry, DatabaseVisitor identifiableVisitor, ForkJoinPool workers, DatabaseManifest manifest, List<Visit> visits) throws IOException, ReflectiveOperationException {
         SystemMapper systemMapper = new SystemMapper();
         GameMapper gameMapper = new GameMapper();
-        ReleaseMapper romhackMapper = new ReleaseMapper();
+        boolean ordered = workers != null && !identifiableVisitor.concurrent();
+        File systemFolder = systemEntry.file();
 
-        if (!systemFolder.isDirectory()) {
+        if (!systemEntry.attributes().isDirectory()) {
             ignored(systemFolder);
             return;
         } else {
             processing(systemFolder);
         }
+        List<FolderEntry> systemEntries = list(systemEntry.path());
+        FolderEntry systemJSON = find(systemEntries, SYSTEM_JSON);
         System_ system = null;
-        if(Files.exists(systemFolder.toPath().resolve(SYSTEM_JSON))) {
-            system = systemMapper.read(systemFolder.toPath().resolve(SYSTEM_JSON));
+        if(systemJSON != null && systemJSON.attributes().isRegularFile()) {
+            system = systemMapper.read(systemJSON.path());
         } else {
             system = new System_(null,null);
         }
-        identifiableVisitor.walk(systemFolder, system);
+        if (ordered) {
+            visits.add(new Visit(systemFolder, system, null));
+        } else {
+            identifiableVisitor.walk(systemFolder, system);
+        }
 
-        for (File parentFolder:systemFolder.listFiles()) {
-            if (!parentFolder.isDirectory()) {
+        for (FolderEntry parentEntry:systemEntries) {
+            File parentFolder = parentEntry.file();
+            if (!parentEntry.attributes().isDirectory()) {
                 ignored(parentFolder);
                 continue;
             } else {
                 processing(parentFolder);
             }
+            List<FolderEntry> parentEntries = list(parentEntry.path());
+            FolderEntry gameJSON = find(parentEntries, GAME_JSON);
             Game game = null;
-            if(Files.exists(parentFolder.toPath().resolve(GAME_JSON))) {
-                game = gameMapper.read(parentFolder.toPath().resolve(GAME_JSON));
+            if(gameJSON != null && gameJSON.attributes().isRegularFile()) {
+                game = gameMapper.read(gameJSON.path());
             } else {
                 game = new Game(null, null);
             }
-            identifiableVisitor.walk(parentFolder, game);
+            if (ordered) {
+                visits.add(new Visit(parentFolder, game, null));
+            } else {
+                identifiableVisitor.walk(parentFolder, game);
+            }
 
-            for (File cloneFolder:parentFolder.listFiles()) {
-                if (!cloneFolder.isDirectory()) {
+            for (FolderEntry cloneEntry:parentEntries) {
+                File cloneFolder = cloneEntry.file();
+                if (!cloneEntry.attributes().isDirectory()) {
                     ignored(cloneFolder);
                     continue;
                 }
-                int romhackFiles = 0;
-                File romhackJSON = null;
-                File romhackBPS = null;
-                File romhackOriginal = null;
-                for (File file:cloneFolder.listFiles()) {
-                    if (file.getName().equals(ROMHACK_JSON) && file.isFile()) {
-                        romhackJSON = file;
-                        romhackFiles++;
-                    } else if (file.getName().equals(ROMHACK_BPS) && file.isFile()) {
-                        romhackBPS = file;
-                        romhackFiles++;
-                    } else if(file.getName().equals(ROMHACK_ORIGINAL) && file.isDirectory() && file.listFiles().length > 0) {
-                        romhackOriginal = file;
-                        romhackFiles++;
+                if (workers == null) {
+                    ExtendedRelease extendedRomhack = processRelease(systemFolder, system, parentFolder, game, cloneFolder, identifiableVisitor.validate(), manifest);
+                    if (extendedRomhack != null) {
+                        identifiableVisitor.walk(cloneFolder, extendedRomhack);
                     }
-                }
-
-                if (romhackFiles == 0) {
-                    ignored(cloneFolder);
                     continue;
-                } else if (romhackFiles != 3) {
-                    throw new RuntimeException("Missing romhack.json, romhack.bps or romhack-original folder");
-                } else {
-                    processing(cloneFolder);
                 }
+                System_ releaseSystem = system;
+                Game releaseGame = game;
+                CompletableFuture<ExtendedRelease> release = CompletableFuture.supplyAsync(() -> {
+                    try {
+                        ExtendedRelease extendedRomhack = processRelease(systemFolder, releaseSystem, parentFolder, releaseGame, cloneFolder, identifiableVisitor.validate(), manifest);
+                        if (extendedRomhack != null && !ordered) {
+                            identifiableVisitor.walk(cloneFolder, extendedRomhack);
+                        }
+                        return extendedRomhack;
+                    } catch (IOException | ReflectiveOperationException e) {
+                        throw new CompletionException(e);
+                    }
+                }, workers);
+                visits.add(new Visit(cloneFolder, null, release));
+            }
+        }
+    }
+
+    /*
+     * Reads and validates the release on the folder, or replays it from the manifest, null when the folder has no release files.
+     */
+    private static ExtendedRelease processRelease(File systemFolder, System_ system, File parentFolder, Game game, File cloneFolder, boolean validate, DatabaseManifest manifest) throws IOException, ReflectiveOperationException {
+        ReleaseMapper romhackMapper = new ReleaseMapper();
+        int romhackFiles = 0;
+        FolderEntry romhackJSON = null;
+        FolderEntry romhackBPS = null;
+        FolderEntry romhackOriginal = null;
+        for (FolderEntry file:list(cloneFolder.toPath())) {
+            String name = file.path().getFileName().toString();
+            if (name.equals(ROMHACK_JSON) && file.attributes().isRegularFile()) {
+                romhackJSON = file;
+                romhackFiles++;
+            } else if (name.equals(ROMHACK_BPS) && file.attributes().isRegularFile()) {
+                romhackBPS = file;
+                romhackFiles++;
+            } else if(name.equals(ROMHACK_ORIGINAL) && file.attributes().isDirectory() && !isEmpty(file.path())) {
+                romhackOriginal = file;
+                romhackFiles++;
+            }
+        }
 
-                Release romhack = romhackMapper.read(romhackJSON.toPath());
+        if (romhackFiles == 0) {
+            ignored(cloneFolder);
+            return null;
+        } else if (romhackFiles != 3) {
+            throw new RuntimeException("Missing romhack.json, romhack.bps or romhack-original folder");
+        } else {
+            processing(cloneFolder);
+        }
 
-                if (identifiableVisitor.validate()) {
-                    ReleaseValidator.validateMetadata(romhack);
-                    ReleaseValidator.validateFolder(romhack, cloneFolder.toPath());
-                    ReleaseValidator.validateBPS(romhack, cloneFolder.toPath().resolve("romhack.bps"));
-                }
+        Release romhack;
+        if (manifest == null) {
+            romhack = romhackMapper.read(romhackJSON.path());
+            if (validate) {
+                validate(romhack, cloneFolder);
+            }
+        } else {
+            String folder = systemFolder.getName() + "/" + parentFolder.getName() + "/" + cloneFolder.getName();
+            DatabaseManifest.ReleaseEntry entry = manifest.check(folder, romhackJSON.path(), romhackJSON.attributes(), romhackBPS.path(), romhackBPS.attributes(), original(list(romhackOriginal.path())));
+            romhack = romhackMapper.read(entry.romhack());
+            if (validate && !entry.validated()) {
+                validate(romhack, cloneFolder);
+                entry = entry.withValidated();
+            }
+            manifest.put(entry);
+        }
+
+        return new ExtendedRelease(systemFolder.getName(), system, parentFolder.getName(), game, cloneFolder.getName(), romhack);
+    }
+
+    private static void validate(Release romhack, File cloneFolder) throws IOException {
+        ReleaseValidator.validateMetadata(romhack);
+        ReleaseValidator.validateFolder(romhack, cloneFolder.toPath());
+        ReleaseValidator.validateBPS(romhack, cloneFolder.toPath().resolve("romhack.bps"));
+    }
+
+    /*
+     * The romhack-original contents the validation checks, sorted names with / after folders.
+     */
+    private static String original(List<FolderEntry> romhackOriginal) {
+        List<String> names = new ArrayList<>();
+        for (FolderEntry file:romhackOriginal) {
+            String name = file.path().getFileName().toString();
+            names.add(file.attributes().isDirectory() ? name + "/" : name);
+        }
+        Collections.sort(names);
+        return String.join(",", names);
+    }
+
+    /*
+     * A folder entry with the attributes read by the folder listing.
+     */
+    private record FolderEntry(Path path, BasicFileAttributes attributes) {
+        File file() {
+            return path.toFile();
+        }
+    }
+
+    /*
+     * Entries of the folder in directory order, as File.listFiles, with their attributes. Links are followed, as
+     * File.isDirectory does.
+     */
+    private static List<FolderEntry> list(Path folder) throws IOException {
+        List<FolderEntry> entries = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(folder)) {
+            for (Path path:stream) {
+                entries.add(new FolderEntry(path, Files.readAttributes(path, BasicFileAttributes.class)));
+            }
+        }
+        return entries;
+    }
+
+    /*
+     * Reads the first entry only, without attributes.
+     */
+    private static boolean isEmpty(Path folder) throws IOException {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(folder)) {
+            return !stream.iterator().hasNext();
+        }
+    }
+
+    private static FolderEntry find(List<FolderEntry> entries, String name) {
+        for (FolderEntry entry:entries) {
+            if (entry.path().getFileName().toString().equals(name)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /*
+     * A system or game already read, or a release being processed by the workers.
+     */
+    private record Visit(File folder, Identifiable identifiable, CompletableFuture<ExtendedRelease> release) {
+        /*
+         * Waits for the release, and calls the visitor unless it was already called from the workers.
+         * Errors processing the release are thrown as the sequential walk would.
+         */
+        void deliver(DatabaseVisitor identifiableVisitor) throws IOException, ReflectiveOperationException {
+            if (release == null) {
+                identifiableVisitor.walk(folder, identifiable);
+                return;
+            }
+            ExtendedRelease extendedRomhack;
+            try {
+                extendedRomhack = release.join();
+            } catch (CompletionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException ioe) throw ioe;
+                if (cause instanceof ReflectiveOperationException roe) throw roe;
+                if (cause instanceof RuntimeException re) throw re;
+                if (cause instanceof Error er) throw er;
+                throw e;
+            }
+            if (extendedRomhack != null && !identifiableVisitor.concurrent()) {
+                identifiableVisitor.walk(folder, extendedRomhack);
+            }
+        }
 
-                ExtendedRelease extendedRomhack = new ExtendedRelease(systemFolder.getName(), system, parentFolder.getName(), game, cloneFolder.getName(), romhack);
-                identifiableVisitor.walk(cloneFolder, extendedRomhack);
+        void cancel() {
+            if (release != null) {
+                release.cancel(false);
             }
         }
     }
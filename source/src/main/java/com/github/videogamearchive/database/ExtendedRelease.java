@@ -110,9 +110,19 @@ public record ExtendedRelease(
     //
     //
 
+    /*
+     * By romhack folder name, ties are ordered by system and parent folder names so concurrent walks sort the same.
+     */
     @Override
     public int compareTo(ExtendedRelease o) {
-        return romhackFolderName.compareTo(o.romhackFolderName);
+        int compare = romhackFolderName.compareTo(o.romhackFolderName);
+        if (compare == 0) {
+            compare = systemFolderName.compareTo(o.systemFolderName);
+        }
+        if (compare == 0) {
+            compare = parentFolderName.compareTo(o.parentFolderName);
+        }
+        return compare;
     }
 
     //
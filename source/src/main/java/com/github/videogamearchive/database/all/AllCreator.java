@@ -0,0 +1,60 @@
+package com.github.videogamearchive.database.all;
+
+import com.github.videogamearchive.dat.DatCreator;
+import com.github.videogamearchive.database.CompositeVisitor;
+import com.github.videogamearchive.database.DatabaseManifest;
+import com.github.videogamearchive.database.DatabaseSnapshot;
+import com.github.videogamearchive.database.DatabaseVisitor;
+import com.github.videogamearchive.database.DatabaseWalker;
+import com.github.videogamearchive.database.index.IndexCreator;
+import com.github.videogamearchive.database.md.MarkdownCreator;
+import com.github.videogamearchive.database.romset.RomsetCreator;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/*
+ * Creates the index, dats and pages, and the romset when roms are given, from a single walk of the database.
+ */
+public class AllCreator {
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1 || args.length > 4) {
+            help();
+        } else {
+            boolean validate = args[args.length - 1].equals("--validate");
+            int folders = validate ? args.length - 1 : args.length;
+            if (folders != 1 && folders != 3) {
+                help();
+                return;
+            }
+            File root = new File(args[0]);
+            if (root.exists() && root.isDirectory()) {
+                List<DatabaseVisitor> visitors = new ArrayList<>();
+                visitors.add(new IndexCreator.IndexVisitor(validate));
+                visitors.add(new DatCreator.DatVisitor(validate));
+                visitors.add(new MarkdownCreator.CacheDatabase(validate));
+                if (folders == 3) {
+                    visitors.add(new RomsetCreator.RomsetVisitor(new File(args[1]), new File(args[2]), validate));
+                }
+                ForkJoinPool workers = ForkJoinPool.commonPool();
+                CompositeVisitor visitor = new CompositeVisitor(workers, visitors.toArray(new DatabaseVisitor[0]));
+                DatabaseManifest manifest = validate ? DatabaseManifest.load(DatabaseManifest.path(root)) : null;
+                DatabaseSnapshot snapshot = DatabaseSnapshot.load(DatabaseSnapshot.path(root));
+                DatabaseWalker.processDatabase(root, visitor, workers, manifest, snapshot);
+                if (manifest != null) {
+                    manifest.save();
+                }
+                visitor.finish();
+            } else {
+                help();
+            }
+        }
+    }
+
+    private static void help() {
+        System.out.println("usage: ");
+        System.out.println("\t\t java -jar all-creator.jar \"database\" [\"roms\" \"romsOutput\"] [--validate]");
+    }
+}
@@ -1,4 +1,6 @@
 package com.github.videogamearchive.dat;
+import com.github.videogamearchive.database.DatabaseManifest;
+import com.github.videogamearchive.database.DatabaseSnapshot;
 import com.github.videogamearchive.database.DatabaseVisitor;
 import com.github.videogamearchive.database.DatabaseWalker;
 import com.github.videogamearchive.database.ExtendedRelease;
@@ -25,11 +27,11 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
 
 public class DatCreator {
     private static SimpleDateFormat TIMESTAMP_FORMAT = new SimpleDateFormat("yyyy-MM-dd HH-mm-ss");
     private static String NOW = TIMESTAMP_FORMAT.format(new Date());
-    private static Map<String, Document> documents = new HashMap<>();
     public static void main(String[] args) throws Exception {
         if (args.length != 1 && args.length != 2) {
             help();
@@ -42,31 +44,14 @@ public class DatCreator {
             }
             File root = new File(args[0]);
             if (root.exists() && root.isDirectory()) {
-                DatabaseVisitor visitor = new DatabaseVisitor() {
-                    @Override
-                    public boolean validate() {
-                        return validate;
-                    }
-
-                    @Override
-                    public void walk(File identifiableFolder, Identifiable identifiable) {
-                        if (identifiable instanceof ExtendedRelease) {
-                            ExtendedRelease xRomhack = (ExtendedRelease) identifiable;
-                            try {
-                                Document systemCollectionDocument = getSystemCollectioDocument(xRomhack.systemFolderName());
-                                addGame(systemCollectionDocument, xRomhack.romhackFolderName(), xRomhack.romhack());
-                            } catch (Exception e) {
-                                throw new RuntimeException(e);
-                            }
-                        }
-                    }
-                };
-
-                DatabaseWalker.processDatabase(root, visitor);
-
-                for (String name:documents.keySet()) {
-                    output(documents.get(name), Files.newOutputStream(Path.of(name + ".xml")), true);
+                DatVisitor visitor = new DatVisitor(validate);
+                DatabaseManifest manifest = validate ? DatabaseManifest.load(DatabaseManifest.path(root)) : null;
+                DatabaseSnapshot snapshot = DatabaseSnapshot.load(DatabaseSnapshot.path(root));
+                DatabaseWalker.processDatabase(root, visitor, ForkJoinPool.commonPool(), manifest, snapshot);
+                if (manifest != null) {
+                    manifest.save();
                 }
+                visitor.finish();
             } else {
                 help();
             }
@@ -78,6 +63,43 @@ public class DatCreator {
         System.out.println("\t\t java -jar dat-creator.jar \"database\" [--validate]");
     }
 
+    /*
+     * Writes a dat file per system once walked.
+     */
+    public static class DatVisitor implements DatabaseVisitor {
+        private final Map<String, Document> documents = new HashMap<>();
+        private final boolean validate;
+
+        public DatVisitor(boolean validate) {
+            this.validate = validate;
+        }
+
+        @Override
+        public boolean validate() {
+            return validate;
+        }
+
+        @Override
+        public void walk(File identifiableFolder, Identifiable identifiable) {
+            if (identifiable instanceof ExtendedRelease) {
+                ExtendedRelease xRomhack = (ExtendedRelease) identifiable;
+                try {
+                    Document systemCollectionDocument = getSystemCollectioDocument(documents, xRomhack.systemFolderName());
+                    addGame(systemCollectionDocument, xRomhack.romhackFolderName(), xRomhack.romhack());
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }
+
+        @Override
+        public void finish() throws TransformerException, IOException {
+            for (String name:documents.keySet()) {
+                output(documents.get(name), Files.newOutputStream(Path.of(name + ".xml")), true);
+            }
+        }
+    }
+
     private static DocumentBuilder getDocumentBuilder() throws ParserConfigurationException {
         DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
         return documentBuilderFactory.newDocumentBuilder();
@@ -101,7 +123,7 @@ public class DatCreator {
         game.appendChild(description);
         game.appendChild(rom);
     }
-    private static Document getSystemCollectioDocument(String system) throws ParserConfigurationException {
+    private static Document getSystemCollectioDocument(Map<String, Document> documents, String system) throws ParserConfigurationException {
         String name = system;
         Document document = documents.get(name);
         if (document == null) {
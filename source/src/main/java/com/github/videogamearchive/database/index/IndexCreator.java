@@ -1,5 +1,7 @@
 package com.github.videogamearchive.database.index;
 
+import com.github.videogamearchive.database.DatabaseManifest;
+import com.github.videogamearchive.database.DatabaseSnapshot;
 import com.github.videogamearchive.database.DatabaseVisitor;
 import com.github.videogamearchive.database.DatabaseWalker;
 import com.github.videogamearchive.database.ExtendedRelease;
@@ -7,13 +9,14 @@ import com.github.videogamearchive.model.Identifiable;
 import com.github.videogamearchive.util.CSV;
 
 import java.io.File;
+import java.io.IOException;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 public class IndexCreator {
-    private static List<ExtendedRelease> romhacks = new ArrayList<>();
     public static void main(String[] args) throws Exception {
         if (args.length != 1 && args.length != 2) {
             help();
@@ -26,25 +29,14 @@ public class IndexCreator {
             }
             File root = new File(args[0]);
             if (root.exists() && root.isDirectory()) {
-                DatabaseWalker.processDatabase(root, new DatabaseVisitor() {
-                    @Override
-                    public boolean validate() {
-                        return validate;
-                    }
-
-                    @Override
-                    public void walk(File identifiableFolder, Identifiable identifiable) {
-                        if (identifiable instanceof ExtendedRelease) {
-                            romhacks.add((ExtendedRelease) identifiable);
-                        }
-                    }
-                });
-                Collections.sort(romhacks);
-                List<String[]> rows = new ArrayList<>(romhacks.size());
-                for (ExtendedRelease row:romhacks) {
-                    rows.add(row.row());
+                IndexVisitor visitor = new IndexVisitor(validate);
+                DatabaseManifest manifest = validate ? DatabaseManifest.load(DatabaseManifest.path(root)) : null;
+                DatabaseSnapshot snapshot = DatabaseSnapshot.load(DatabaseSnapshot.path(root));
+                DatabaseWalker.processDatabase(root, visitor, ForkJoinPool.commonPool(), manifest, snapshot);
+                if (manifest != null) {
+                    manifest.save();
                 }
-                CSV.write(Path.of("../docs/database/database.csv"), ExtendedRelease.headers(), rows);
+                visitor.finish();
             } else {
                 help();
             }
@@ -56,4 +48,43 @@ public class IndexCreator {
         System.out.println("\t\t java -jar index-creator.jar \"database\" [--validate]");
     }
 
+    /*
+     * Writes the database.csv index once walked.
+     */
+    public static class IndexVisitor implements DatabaseVisitor {
+        private final List<ExtendedRelease> romhacks = Collections.synchronizedList(new ArrayList<>()); // sorted once walked
+        private final boolean validate;
+
+        public IndexVisitor(boolean validate) {
+            this.validate = validate;
+        }
+
+        @Override
+        public boolean validate() {
+            return validate;
+        }
+
+        @Override
+        public boolean concurrent() {
+            return true;
+        }
+
+        @Override
+        public void walk(File identifiableFolder, Identifiable identifiable) {
+            if (identifiable instanceof ExtendedRelease) {
+                romhacks.add((ExtendedRelease) identifiable);
+            }
+        }
+
+        @Override
+        public void finish() throws IOException {
+            Collections.sort(romhacks);
+            List<String[]> rows = new ArrayList<>(romhacks.size());
+            for (ExtendedRelease row:romhacks) {
+                rows.add(row.row());
+            }
+            CSV.write(Path.of("../docs/database/database.csv"), ExtendedRelease.headers(), rows);
+        }
+    }
+
 }
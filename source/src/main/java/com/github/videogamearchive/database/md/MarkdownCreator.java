@@ -1,5 +1,7 @@
 package com.github.videogamearchive.database.md;
 
+import com.github.videogamearchive.database.DatabaseManifest;
+import com.github.videogamearchive.database.DatabaseSnapshot;
 import com.github.videogamearchive.database.DatabaseVisitor;
 import com.github.videogamearchive.database.DatabaseWalker;
 import com.github.videogamearchive.database.ExtendedRelease;
@@ -17,6 +19,7 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
 
 public class MarkdownCreator {
 
@@ -33,8 +36,13 @@ public class MarkdownCreator {
             File root = new File(args[0]);
             if (root.exists() && root.isDirectory()) {
                 CacheDatabase cacheDB = new CacheDatabase(validate);
-                DatabaseWalker.processDatabase(root, cacheDB);
-                generatePages(cacheDB);
+                DatabaseManifest manifest = validate ? DatabaseManifest.load(DatabaseManifest.path(root)) : null;
+                DatabaseSnapshot snapshot = DatabaseSnapshot.load(DatabaseSnapshot.path(root));
+                DatabaseWalker.processDatabase(root, cacheDB, ForkJoinPool.commonPool(), manifest, snapshot);
+                if (manifest != null) {
+                    manifest.save();
+                }
+                cacheDB.finish();
             } else {
                 help();
             }
@@ -46,7 +54,7 @@ public class MarkdownCreator {
         System.out.println("\t\t java -jar page-creator.jar \"database\" [--validate]");
     }
 
-    private static class CacheDatabase implements DatabaseVisitor {
+    public static class CacheDatabase implements DatabaseVisitor {
         // Systems Page - List Systems [System Name]
         // docs/database/index.html
         //
@@ -81,6 +89,11 @@ public class MarkdownCreator {
             return validate;
         }
 
+        @Override
+        public void finish() throws IOException, ReflectiveOperationException {
+            generatePages(this);
+        }
+
         @Override
         public void walk(File identifiableFolder, Identifiable identifiable) {
             if (identifiable instanceof System_) {
@@ -8,18 +8,24 @@ import com.github.videogamearchive.model.Release;
 import com.github.videogamearchive.model.validator.ReleaseValidator;
 import com.github.videogamearchive.rompatcher.MarcFile;
 import com.github.videogamearchive.rompatcher.formats.BPS;
+import com.github.videogamearchive.rompatcher.formats.BPSFiles;
+import com.github.videogamearchive.util.BufferPool;
 import com.github.videogamearchive.util.PathUtil;
+import com.github.videogamearchive.util.Hashes;
 import com.github.videogamearchive.util.Zip;
 
 import java.io.File;
 import java.io.FileFilter;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.security.NoSuchAlgorithmException;
-import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
 
 public class RomsetCreator {
+    private static final int MAX_MB_FOR_HEAP_OUTPUT = 268435456; // 256 Mb, bigger inputs or outputs are patched between temporary files
+    private static final BufferPool buffers = new BufferPool(2); // input and output roms usually share a size class
     public static void main(String[] args) throws Exception {
         if (args.length != 3 && args.length != 4) {
             help();
@@ -34,35 +40,8 @@ public class RomsetCreator {
             if (patchesRoot.exists() && patchesRoot.isDirectory()) {
                 File roms = new File(args[1]);
                 File romsOutput = new File(args[2]);
-                DatabaseVisitor visitor = new DatabaseVisitor() {
-                    @Override
-                    public boolean validate() {
-                        return validate;
-                    }
-
-                    @Override
-                    public void walk(File identifiableFolder, Identifiable identifiable) {
-                        if (identifiable instanceof ExtendedRelease) {
-                            ExtendedRelease indexRomhack = (ExtendedRelease) identifiable;
-                            try {
-                                File system = identifiableFolder.getParentFile().getParentFile();
-                                File parent = identifiableFolder.getParentFile();
-                                File pathToInputRom = getInputRom(roms,
-                                        system,
-                                        parent);
-                                File romhackBPS = identifiableFolder.toPath().resolve(DatabaseWalker.ROMHACK_BPS).toFile();
-                                String romhackFileName = identifiableFolder.getName();
-                                String zipName = PathUtil.getNameWithoutExtension(romhackFileName) + ".zip";
-                                File pathToOutputRomZip = getOutputRom(romsOutput, system, zipName);
-                                createRomhack(romhackFileName, indexRomhack.romhack(), romhackBPS, pathToInputRom, pathToOutputRomZip, validate);
-                            } catch (Exception e) {
-                                throw new RuntimeException(e);
-                            }
-                        }
-                    }
-                };
-
-                DatabaseWalker.processDatabase(patchesRoot, visitor);
+                RomsetVisitor visitor = new RomsetVisitor(roms, romsOutput, validate);
+                DatabaseWalker.processDatabase(patchesRoot, visitor, ForkJoinPool.commonPool());
             } else {
                 help();
             }
@@ -73,19 +52,96 @@ public class RomsetCreator {
         System.out.println("\t\t java -jar romset-creator.jar \"database\" \"roms\" \"romsOutput\" [--validate]");
     }
 
+    /*
+     * Patches the input rom of each release into a zip on romsOutput, as it is walked.
+     */
+    public static class RomsetVisitor implements DatabaseVisitor {
+        private final File roms;
+        private final File romsOutput;
+        private final boolean validate;
+
+        public RomsetVisitor(File roms, File romsOutput, boolean validate) {
+            this.roms = roms;
+            this.romsOutput = romsOutput;
+            this.validate = validate;
+        }
+
+        @Override
+        public boolean validate() {
+            return validate;
+        }
+
+        @Override
+        public void walk(File identifiableFolder, Identifiable identifiable) {
+            if (identifiable instanceof ExtendedRelease) {
+                ExtendedRelease indexRomhack = (ExtendedRelease) identifiable;
+                try {
+                    File system = identifiableFolder.getParentFile().getParentFile();
+                    File parent = identifiableFolder.getParentFile();
+                    File pathToInputRom = getInputRom(roms,
+                            system,
+                            parent);
+                    File romhackBPS = identifiableFolder.toPath().resolve(DatabaseWalker.ROMHACK_BPS).toFile();
+                    String romhackFileName = identifiableFolder.getName();
+                    String zipName = PathUtil.getNameWithoutExtension(romhackFileName) + ".zip";
+                    File pathToOutputRomZip = getOutputRom(romsOutput, system, zipName);
+                    createRomhack(romhackFileName, indexRomhack.romhack(), romhackBPS, pathToInputRom, pathToOutputRomZip, validate);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }
+    }
+
     private static void createRomhack(String romhackFileName, Release romhack, File romhackBPS, File pathToInputRom, File pathToOutputRomZip, boolean validate) throws IOException, NoSuchAlgorithmException {
-        BPS bps = BPS.parseBPSFile(new MarcFile(romhackBPS.toPath()));
-        byte[] inputRomAsBytes;
-        if (PathUtil.isZip(pathToInputRom.toPath())) {
-            inputRomAsBytes = Zip.readAllBytesOneFile(pathToInputRom.toPath());
+        // when validating, the output hashes are computed while the patch is applied
+        Hashes.Digester outputDigester = validate ? new Hashes.Digester() : null;
+        boolean zippedInput = PathUtil.isZip(pathToInputRom.toPath());
+        long inputSize = zippedInput ? Zip.sizeOneFile(pathToInputRom.toPath()) : Files.size(pathToInputRom.toPath());
+        long targetSize = BPS.readHeader(romhackBPS.toPath()).targetSize();
+        if (inputSize >= 0 && inputSize < MAX_MB_FOR_HEAP_OUTPUT && targetSize < MAX_MB_FOR_HEAP_OUTPUT) {
+            createRomhackOnHeap(romhackFileName, romhackBPS, pathToInputRom, zippedInput, (int) targetSize, pathToOutputRomZip, outputDigester);
         } else {
-            inputRomAsBytes = Files.readAllBytes(pathToInputRom.toPath());
+            // patched between files through channels, nothing stays mapped, so they can be deleted right away on any system
+            Path tempInput = null;
+            Path tempOutput = Files.createTempFile(pathToOutputRomZip.toPath().getParent(), "romhack", ".tmp");
+            try {
+                Path input = pathToInputRom.toPath();
+                if (zippedInput) {
+                    tempInput = Files.createTempFile(pathToOutputRomZip.toPath().getParent(), "rom", ".tmp");
+                    Zip.extractOneFile(input, tempInput);
+                    input = tempInput;
+                }
+                BPSFiles.applyBPSFile(romhackBPS.toPath(), input, tempOutput, true, outputDigester);
+                Zip.write(pathToOutputRomZip.toPath(), romhackFileName, tempOutput);
+            } finally {
+                Files.deleteIfExists(tempOutput);
+                if (tempInput != null) {
+                    Files.deleteIfExists(tempInput);
+                }
+            }
         }
-        MarcFile output = bps.apply(new MarcFile(inputRomAsBytes), true);
-        byte[] bytes = output.save();
-        Zip.write(pathToOutputRomZip.toPath(), Map.of(romhackFileName, bytes));
         if (validate) {
-            ReleaseValidator.validateRom(romhack, bytes);
+            ReleaseValidator.validateRom(romhack, outputDigester.digests());
+        }
+    }
+
+    /*
+     * Input, patch and output buffers are leased from the pool, so they are reused between romhacks.
+     */
+    private static void createRomhackOnHeap(String romhackFileName, File romhackBPS, File pathToInputRom, boolean zippedInput, int targetSize, File pathToOutputRomZip, Hashes.Digester outputDigester) throws IOException {
+        ByteBuffer inputRomBuffer = zippedInput ? Zip.readOneFile(pathToInputRom.toPath(), buffers) : buffers.read(pathToInputRom.toPath());
+        ByteBuffer patchBuffer = buffers.read(romhackBPS.toPath());
+        byte[] outputBuffer = buffers.lease(targetSize);
+        try {
+            MarcFile inputRom = new MarcFile(inputRomBuffer.array(), inputRomBuffer.limit());
+            MarcFile patch = new MarcFile(patchBuffer.array(), patchBuffer.limit());
+            MarcFile output = BPS.applyBPSFile(patch, inputRom, true, outputDigester, outputBuffer);
+            Zip.write(pathToOutputRomZip.toPath(), romhackFileName, output.asByteBuffer());
+        } finally {
+            buffers.release(outputBuffer);
+            buffers.release(patchBuffer.array());
+            buffers.release(inputRomBuffer.array());
         }
     }
 
@@ -0,0 +1,43 @@
+package com.github.videogamearchive.database.snapshot;
+
+import com.github.videogamearchive.database.DatabaseManifest;
+import com.github.videogamearchive.database.DatabaseSnapshot;
+import com.github.videogamearchive.database.DatabaseWalker;
+
+import java.io.File;
+import java.util.concurrent.ForkJoinPool;
+
+/*
+ * Compiles the database into the snapshot the other tools replay while the database doesn't change.
+ */
+public class SnapshotCreator {
+    public static void main(String[] args) throws Exception {
+        if (args.length != 1 && args.length != 2) {
+            help();
+        } else {
+            boolean validate;
+            if (args.length == 2) {
+                validate = args[1].equals("--validate");
+            } else {
+                validate = false;
+            }
+            File root = new File(args[0]);
+            if (root.exists() && root.isDirectory()) {
+                DatabaseSnapshot.Writer visitor = new DatabaseSnapshot.Writer(DatabaseSnapshot.path(root), root, validate);
+                DatabaseManifest manifest = validate ? DatabaseManifest.load(DatabaseManifest.path(root)) : null;
+                DatabaseWalker.processDatabase(root, visitor, ForkJoinPool.commonPool(), manifest);
+                if (manifest != null) {
+                    manifest.save();
+                }
+                visitor.finish();
+            } else {
+                help();
+            }
+        }
+    }
+
+    private static void help() {
+        System.out.println("usage: ");
+        System.out.println("\t\t java -jar snapshot-creator.jar \"database\" [--validate]");
+    }
+}
@@ -16,6 +16,7 @@ import java.time.Instant;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
 
 public class Romhack2Release {
     public static DateTimeFormatter archiveFormat = DateTimeFormatter.ISO_LOCAL_DATE.withLocale(Locale.ENGLISH).withZone(ZoneId.systemDefault());
@@ -38,9 +39,6 @@ public class Romhack2Release {
                     urls.add(args[i]);
                 }
             }
-            if (Files.size(parent) > MAX_MB_FOR_LINEAR || Files.size(romhack) > MAX_MB_FOR_LINEAR) {
-                throw new RuntimeException("rom is too big for this tool to handle. Please use this tool with --no-bps flag and flips to generate the bps.");
-            }
             process(disableBPS, parent, romhack, outputFolder, retrievedBy, urls, false);
         }
     }
@@ -52,16 +50,21 @@ public class Romhack2Release {
         System.out.println("- URL information takes precedence over filename information.");
     }
 
-    static private long MAX_MB_FOR_DELTA = 16777216; // 16 Mb
-    static private long MAX_MB_FOR_LINEAR = 536870911; // 512 Mb
+    static private long MAX_MB_FOR_SUFFIX_ARRAY = 8388608; // 8 Mb, longest matches from a suffix array, uses around 24 bytes per rom byte
+    static private long MAX_MB_FOR_FULL_DELTA = 16777216; // 16 Mb, unlimited match search as original beat
+    static private long MAX_MB_FOR_DELTA = 268435456; // 256 Mb, match search bounded by DELTA_CHAIN_DEPTH on 1 Mb chunks in parallel, copies don't cross chunks, bigger roms use linear mode
+    static private long MIN_MB_FOR_MAPPING = 16777216; // 16 Mb, bigger roms are mapped instead of loaded
+    static private int DELTA_CHAIN_DEPTH = 32;
+    static private int DELTA_HASH_LENGTH = 4;
 
     public static Path process(boolean disableBPS, Path pathToParentRom, Path pathToRomhackRom, Path outDir, String retrievedBy, List<String> urls, boolean keepGivenFilename) throws Exception {
         System.out.println("maxMemory: " + Runtime.getRuntime().maxMemory());
         // Create romhack.json
         Info info = new Info(null, null, null, null, null, null, null);
         Provenance provenance = new Provenance(retrievedBy, archiveFormat.format(Instant.now()), null, null);
-        byte[] romhackRomBytes = getBytes(pathToRomhackRom);
-        Rom rom = new Rom((long) romhackRomBytes.length, Hashes.getCrc32(romhackRomBytes), Hashes.getMd5(romhackRomBytes), Hashes.getSha1(romhackRomBytes));
+        MarcFile romhackRom = getMarcFile(pathToRomhackRom);
+        Hashes.Digests digests = Hashes.getDigests(romhackRom.asByteBuffer(), ForkJoinPool.commonPool());
+        Rom rom = new Rom(digests.size(), digests.crc32(), digests.md5(), digests.sha1());
         String romhackName = PathUtil.getName(pathToRomhackRom);
         List<Hack> patches = new ArrayList<>();
         for (String patchAsString: StringUtil.substrings(romhackName, "[", "]", true)) {
@@ -157,11 +160,18 @@ public class Romhack2Release {
 
         // Create romhack.bps
         if (!disableBPS) {
-            byte[] parentRomBytes = getBytes(pathToParentRom);
-            MarcFile parentRom = new MarcFile(parentRomBytes);
-            MarcFile romhackRom = new MarcFile(romhackRomBytes);
-            boolean useDeltaMode = (parentRomBytes.length < MAX_MB_FOR_DELTA && romhackRomBytes.length < MAX_MB_FOR_DELTA);
-            BPS bps = BPS.createBPSFromFiles(parentRom, romhackRom, useDeltaMode);
+            MarcFile parentRom = getMarcFile(pathToParentRom);
+            long maxSize = Math.max(parentRom.fileSize, romhackRom.fileSize);
+            BPS bps;
+            if (maxSize < MAX_MB_FOR_SUFFIX_ARRAY) {
+                bps = BPS.createBPSFromFiles(parentRom, romhackRom, BPS.Mode.SuffixArray);
+            } else if (maxSize < MAX_MB_FOR_FULL_DELTA) {
+                bps = BPS.createBPSFromFiles(parentRom, romhackRom, BPS.Mode.Delta);
+            } else if (maxSize < MAX_MB_FOR_DELTA) {
+                bps = BPS.createBPSFromFiles(parentRom, romhackRom, DELTA_CHAIN_DEPTH, DELTA_HASH_LENGTH, ForkJoinPool.commonPool(), true);
+            } else {
+                bps = BPS.createBPSFromFiles(parentRom, romhackRom, false);
+            }
             MarcFile romhackBPS = bps.export();
             romhackBPS.save(out.resolve("romhack.bps"));
         }
@@ -175,13 +185,15 @@ public class Romhack2Release {
         return out;
     }
 
-    private static byte[] getBytes(Path path) throws IOException {
-        byte[] bytes = null;
+    private static MarcFile getMarcFile(Path path) throws IOException {
+        MarcFile file = null;
         if (PathUtil.isZip(path)) {
-            bytes = Zip.readAllBytesOneFile(path);
+            file = new MarcFile(Zip.readAllBytesOneFile(path));
+        } else if (Files.size(path) >= MIN_MB_FOR_MAPPING) {
+            file = MarcFile.map(path);
         } else {
-            bytes = Files.readAllBytes(path);
+            file = new MarcFile(path);
         }
-        return bytes;
+        return file;
     }
 }
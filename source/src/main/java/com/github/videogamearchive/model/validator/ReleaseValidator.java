@@ -2,7 +2,6 @@ package com.github.videogamearchive.model.validator;
 
 import com.github.videogamearchive.model.Hack;
 import com.github.videogamearchive.model.Release;
-import com.github.videogamearchive.rompatcher.MarcFile;
 import com.github.videogamearchive.rompatcher.formats.BPS;
 import com.github.videogamearchive.util.Hashes;
 import com.github.videogamearchive.util.PathUtil;
@@ -10,6 +9,7 @@ import com.github.videogamearchive.util.StringUtil;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.security.NoSuchAlgorithmException;
@@ -50,12 +50,12 @@ public class ReleaseValidator {
     }
 
     public static void validateBPS(Release romhack, Path romhackBPS) throws IOException {
-        BPS bps = BPS.parseBPSFile(new MarcFile(romhackBPS));
-        if (romhack.rom().size() != bps.targetSize) {
-            throw new RuntimeException("romhack rom size and bps patch target size differ - Actual: " + bps.targetSize + " Expected: " + romhack.rom().size());
+        BPS.Header bps = BPS.readHeader(romhackBPS);
+        if (romhack.rom().size() != bps.targetSize()) {
+            throw new RuntimeException("romhack rom size and bps patch target size differ - Actual: " + bps.targetSize() + " Expected: " + romhack.rom().size());
         }
         String expectedRomCrc = romhack.rom().crc32();
-        String foundRomCrc = Hashes.getCrc32toString(bps.targetChecksum);
+        String foundRomCrc = Hashes.getCrc32toString(bps.targetChecksum());
         if (!expectedRomCrc.equals(foundRomCrc)) {
             throw new RuntimeException("romhack rom crc32 and bps patch target crc32 differ - Actual: " + foundRomCrc + " Expected: " + expectedRomCrc);
         }
@@ -108,20 +108,24 @@ public class ReleaseValidator {
     }
 
     public static void validateRom(Release romhack, byte[] bytes) throws NoSuchAlgorithmException {
-        String crc32 = Hashes.getCrc32(bytes);
+        validateRom(romhack, Hashes.getDigests(ByteBuffer.wrap(bytes), null));
+    }
+
+    public static void validateRom(Release romhack, Hashes.Digests digests) {
+        String crc32 = digests.crc32();
         if (!romhack.rom().crc32().equals(crc32)) {
             throw new RuntimeException("romhack rom crc32 differ - Actual: " + crc32 + " Expected: " + romhack.rom().crc32());
         }
-        String md5 = Hashes.getMd5(bytes);
+        String md5 = digests.md5();
         if (!romhack.rom().md5().equals(md5)) {
             throw new RuntimeException("romhack rom md5 differ - Actual: " + md5 + " Expected: " + romhack.rom().md5());
         }
-        String sha1 = Hashes.getSha1(bytes);
+        String sha1 = digests.sha1();
         if (!romhack.rom().sha1().equals(sha1)) {
             throw new RuntimeException("romhack rom sha1 differ - Actual: " + sha1 + " Expected: " + romhack.rom().sha1());
         }
-        if (romhack.rom().size() != bytes.length) {
-            throw new RuntimeException("romhack rom size differ - Actual: " + bytes.length + " Expected: " + romhack.rom().size());
+        if (romhack.rom().size() != digests.size()) {
+            throw new RuntimeException("romhack rom size differ - Actual: " + digests.size() + " Expected: " + romhack.rom().size());
         }
     }
 
@@ -2,32 +2,95 @@
 package com.github.videogamearchive.rompatcher;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 public class MarcFile {
     public boolean littleEndian=false;
     public int offset=0;
     public Object _lastRead = null;
-    public int[] _u8array;
+    public byte[] _u8array;
+    public ByteBuffer _u8buffer; // Only set for mapped files and views, _u8array is null on those
     public int fileSize;
     public MarcFile(Path source) throws IOException {
         this(Files.readAllBytes(source));
     }
+    /*
+     * The given array is used as backing store as it is, no copy is made.
+     * Values are stored as signed bytes, readers must mask them with 0xff to obtain the unsigned value.
+     */
     public MarcFile(byte[] bytes) throws IOException {
-        this._u8array = new int[bytes.length];
-        for (int i = 0; i < bytes.length; i++) {
-            this._u8array[i] = Byte.toUnsignedInt(bytes[i]);
-        }
+        this._u8array = bytes;
         this.fileSize = bytes.length;
     }
 
+    /*
+     * As MarcFile(bytes), for a backing array that can be bigger than the file, like pooled buffers.
+     */
+    public MarcFile(byte[] bytes, int size) {
+        this._u8array = bytes;
+        this.fileSize = size;
+    }
+
     public MarcFile(int size) {
-        this._u8array=new int[size];
+        this._u8array=new byte[size];
         this.fileSize=size;
     }
 
+    private MarcFile(ByteBuffer buffer) {
+        this._u8buffer=buffer;
+        this.fileSize=buffer.capacity();
+    }
+
+    /*
+     * Maps the file read-only instead of loading it on the heap, reads are served by the OS page cache.
+     * Mapped files only support read operations.
+     */
+    public static MarcFile map(Path source) throws IOException {
+        try (FileChannel channel = FileChannel.open(source, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("file is too big to be mapped: " + source);
+            }
+            return new MarcFile(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /*
+     * Zero-copy view of a range of the file, sharing its contents. As mapped files, views only support read operations.
+     */
+    public MarcFile sliceView(int offset, int len) {
+        MarcFile view = new MarcFile(this.asByteBuffer().slice(offset, len));
+        view.littleEndian = this.littleEndian;
+        return view;
+    }
+
+    public boolean isMapped() {
+        return this._u8buffer != null;
+    }
+
+    /*
+     * Absolute view of the file contents, wraps the backing array for files on the heap.
+     */
+    public ByteBuffer asByteBuffer() {
+        if (this.isMapped()) {
+            return this._u8buffer;
+        }
+        return ByteBuffer.wrap(this._u8array, 0, this.fileSize);
+    }
+
+    public int getU8(int offset) {
+        if (this._u8buffer != null) {
+            return this._u8buffer.get(offset) & 0xff;
+        }
+        return this._u8array[offset] & 0xff;
+    }
+
 
 
 
@@ -130,17 +193,26 @@ public class MarcFile {
         if(len==null||len==0)
             len=(this.fileSize-offsetSource);
 
-        for(var i=0; i<len; i++){
-            target._u8array[offsetTarget+i]=this._u8array[offsetSource+i];
+        if(this.isMapped()){
+            this._u8buffer.get(offsetSource, target._u8array, offsetTarget, len);
+        }else{
+            System.arraycopy(this._u8array, offsetSource, target._u8array, offsetTarget, len);
         }
     }
 
+    /*
+     * Returns the backing array when it matches the file size, callers should not modify it.
+     */
     public byte[] save() {
-        byte[] bytes = new byte[this._u8array.length];
-        for (int i = 0; i < this._u8array.length; i++) {
-            bytes[i] = (byte) this._u8array[i];
+        if (this.isMapped()) {
+            byte[] bytes = new byte[this.fileSize];
+            this._u8buffer.get(0, bytes);
+            return bytes;
+        }
+        if (this._u8array.length == this.fileSize) {
+            return this._u8array;
         }
-        return bytes;
+        return Arrays.copyOf(this._u8array, this.fileSize);
     }
     public void save(Path path) throws IOException {
         Files.write(path, save());
@@ -158,101 +230,133 @@ public class MarcFile {
 
 
 
+    /*
+     * Typed reads at an absolute offset, they don't move the offset nor box the value into _lastRead.
+     */
+    public int getU16(int offset) {
+        if(this.littleEndian)
+            return this.getU8(offset) + (this.getU8(offset+1) << 8);
+        else
+            return (this.getU8(offset) << 8) + this.getU8(offset+1);
+    }
+    public int getU24(int offset) {
+        if(this.littleEndian)
+            return this.getU8(offset) + (this.getU8(offset+1) << 8) + (this.getU8(offset+2) << 16);
+        else
+            return (this.getU8(offset) << 16) + (this.getU8(offset+1) << 8) + this.getU8(offset+2);
+    }
+    public int getU32(int offset) {
+        if(this.littleEndian)
+            return this.getU8(offset) + (this.getU8(offset+1) << 8) + (this.getU8(offset+2) << 16) + (this.getU8(offset+3) << 24);
+        else
+            return (this.getU8(offset) << 24) + (this.getU8(offset+1) << 16) + (this.getU8(offset+2) << 8) + this.getU8(offset+3);
+    }
+
     public int readU8() {
-        this._lastRead=this._u8array[this.offset];
+        this._lastRead=this.getU8(this.offset);
 
         this.offset++;
         return (int) this._lastRead;
     }
     public int readU16() {
-        if(this.littleEndian)
-            this._lastRead=this._u8array[this.offset] + (this._u8array[this.offset+1] << 8);
-        else
-            this._lastRead=(this._u8array[this.offset] << 8) + this._u8array[this.offset+1];
+        this._lastRead=this.getU16(this.offset);
 
         this.offset+=2;
         return (int) this._lastRead >>> 0;
     }
     public int readU24() {
-        if(this.littleEndian)
-            this._lastRead=this._u8array[this.offset] + (this._u8array[this.offset+1] << 8) + (this._u8array[this.offset+2] << 16);
-        else
-            this._lastRead=(this._u8array[this.offset] << 16) + (this._u8array[this.offset+1] << 8) + this._u8array[this.offset+2];
+        this._lastRead=this.getU24(this.offset);
 
         this.offset+=3;
         return (int) this._lastRead >>> 0;
     }
     public int readU32() {
-        if(this.littleEndian)
-            this._lastRead=this._u8array[this.offset] + (this._u8array[this.offset+1] << 8) + (this._u8array[this.offset+2] << 16) + (this._u8array[this.offset+3] << 24);
-        else
-            this._lastRead=(this._u8array[this.offset] << 24) + (this._u8array[this.offset+1] << 16) + (this._u8array[this.offset+2] << 8) + this._u8array[this.offset+3];
+        this._lastRead=this.getU32(this.offset);
 
         this.offset+=4;
         return (int) this._lastRead >>> 0;
     }
 
+    /*
+     * Copies the next len bytes into the array, without boxing them as readBytes.
+     */
+    public void readInto(byte[] bytes, int off, int len) {
+        if (this.isMapped()) {
+            this._u8buffer.get(this.offset, bytes, off, len);
+        } else {
+            System.arraycopy(this._u8array, this.offset, bytes, off, len);
+        }
+
+        this.offset+=len;
+    }
+
 
 
     public List<Integer> readBytes(int len){
         this._lastRead=new ArrayList<Integer>(len);
         for(var i=0; i<len; i++){
-            ((ArrayList<Integer>) this._lastRead).add(this._u8array[this.offset+i]);
+            ((ArrayList<Integer>) this._lastRead).add(this.getU8(this.offset+i));
         }
 
         this.offset+=len;
         return (ArrayList<Integer>) this._lastRead;
     }
 
+    /*
+     * Bytes up to the first 0, as chars of the same value, ISO-8859-1 maps every byte that way.
+     */
     public String readString(int len){
-        this._lastRead="";
-        for(var i=0;i<len && (this.offset+i)<this.fileSize && this._u8array[this.offset+i]>0;i++)
-            this._lastRead=(String)this._lastRead+(char)(this._u8array[this.offset+i]);
+        int end=this.offset;
+        while(end<this.offset+len && end<this.fileSize && this.getU8(end)!=0)
+            end++;
+        byte[] chars=new byte[end-this.offset];
+        this.asByteBuffer().get(this.offset, chars);
+        this._lastRead=new String(chars, StandardCharsets.ISO_8859_1);
 
         this.offset+=len;
         return (String) this._lastRead;
     }
 
     public void writeU8(int u8){
-        this._u8array[this.offset]=u8;
+        this._u8array[this.offset]=(byte) u8;
 
         this.offset++;
     }
     public void writeU16(int u16){
         if(this.littleEndian){
-            this._u8array[this.offset]=u16 & 0xff;
-            this._u8array[this.offset+1]=u16 >> 8;
+            this._u8array[this.offset]=(byte) (u16 & 0xff);
+            this._u8array[this.offset+1]=(byte) (u16 >> 8);
         }else{
-            this._u8array[this.offset]=u16 >> 8;
-            this._u8array[this.offset+1]=u16 & 0xff;
+            this._u8array[this.offset]=(byte) (u16 >> 8);
+            this._u8array[this.offset+1]=(byte) (u16 & 0xff);
         }
 
         this.offset+=2;
     }
     public void writeU24(int u24){
         if(this.littleEndian){
-            this._u8array[this.offset]=u24 & 0x0000ff;
-            this._u8array[this.offset+1]=(u24 & 0x00ff00) >> 8;
-            this._u8array[this.offset+2]=(u24 & 0xff0000) >> 16;
+            this._u8array[this.offset]=(byte) (u24 & 0x0000ff);
+            this._u8array[this.offset+1]=(byte) ((u24 & 0x00ff00) >> 8);
+            this._u8array[this.offset+2]=(byte) ((u24 & 0xff0000) >> 16);
         }else{
-            this._u8array[this.offset]=(u24 & 0xff0000) >> 16;
-            this._u8array[this.offset+1]=(u24 & 0x00ff00) >> 8;
-            this._u8array[this.offset+2]=u24 & 0x0000ff;
+            this._u8array[this.offset]=(byte) ((u24 & 0xff0000) >> 16);
+            this._u8array[this.offset+1]=(byte) ((u24 & 0x00ff00) >> 8);
+            this._u8array[this.offset+2]=(byte) (u24 & 0x0000ff);
         }
 
         this.offset+=3;
     }
     public void writeU32(long u32){
         if(this.littleEndian){
-            this._u8array[this.offset]= (int) (u32 & 0x000000ff);
-            this._u8array[this.offset+1]=(int) ((u32 & 0x0000ff00) >> 8);
-            this._u8array[this.offset+2]=(int) ((u32 & 0x00ff0000) >> 16);
-            this._u8array[this.offset+3]=(int) ((u32 & 0xff000000) >> 24);
+            this._u8array[this.offset]=(byte) (u32 & 0x000000ff);
+            this._u8array[this.offset+1]=(byte) ((u32 & 0x0000ff00) >> 8);
+            this._u8array[this.offset+2]=(byte) ((u32 & 0x00ff0000) >> 16);
+            this._u8array[this.offset+3]=(byte) ((u32 & 0xff000000) >> 24);
         }else{
-            this._u8array[this.offset]=(int) ((u32 & 0xff000000) >> 24);
-            this._u8array[this.offset+1]=(int) ((u32 & 0x00ff0000) >> 16);
-            this._u8array[this.offset+2]=(int) ((u32 & 0x0000ff00) >> 8);
-            this._u8array[this.offset+3]=(int) (u32 & 0x000000ff);
+            this._u8array[this.offset]=(byte) ((u32 & 0xff000000) >> 24);
+            this._u8array[this.offset+1]=(byte) ((u32 & 0x00ff0000) >> 16);
+            this._u8array[this.offset+2]=(byte) ((u32 & 0x0000ff00) >> 8);
+            this._u8array[this.offset+3]=(byte) (u32 & 0x000000ff);
         }
 
         this.offset+=4;
@@ -261,14 +365,23 @@ public class MarcFile {
 
     public void writeBytes(List<Integer> a){
         for(var i=0;i<a.size();i++)
-            this._u8array[this.offset+i]=a.get(i);
+            this._u8array[this.offset+i]=a.get(i).byteValue();
 
         this.offset+=a.size();
     }
 
+    /*
+     * Writes the buffer remaining bytes, its position is left untouched.
+     */
+    public void writeBytes(ByteBuffer bytes){
+        bytes.get(bytes.position(), this._u8array, this.offset, bytes.remaining());
+
+        this.offset+=bytes.remaining();
+    }
+
     public void writeString(String str){
         for(var i=0;i<str.length();i++)
-            this._u8array[this.offset+i]=str.charAt(i);
+            this._u8array[this.offset+i]=(byte) str.charAt(i);
 
         this.offset+=str.length();
     }
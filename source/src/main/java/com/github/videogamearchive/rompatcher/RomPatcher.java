@@ -2,6 +2,7 @@
 package com.github.videogamearchive.rompatcher;
 
 import com.github.videogamearchive.rompatcher.formats.BPS;
+import com.github.videogamearchive.rompatcher.formats.BPSFiles;
 import com.github.videogamearchive.rompatcher.formats.IPS;
 import com.github.videogamearchive.rompatcher.formats.UPS;
 import com.github.videogamearchive.util.PathUtil;
@@ -20,6 +21,12 @@ public class RomPatcher {
             Path patch = Path.of(args[0]);
             String extension = PathUtil.getExtension(patch);
             Path input = Path.of(args[1]);
+            Path output = Path.of(args[2]);
+            if ("bps".equals(extension) && !PathUtil.isZip(input) && !PathUtil.isZip(output)) {
+                // patched between the files, without loading them, so roms can be over 2 GB
+                BPSFiles.applyBPSFile(patch, input, output, true);
+                return;
+            }
             String inputName;
             byte[] inputBytes;
             if (PathUtil.isZip(input)) {
@@ -33,7 +40,6 @@ public class RomPatcher {
                 inputName = PathUtil.getName(input);
                 inputBytes = Files.readAllBytes(input);
             }
-            Path output = Path.of(args[2]);
             String outputName = null;
             byte[] outputBytes = null;
             switch (extension) {
@@ -48,8 +54,7 @@ public class RomPatcher {
                     outputBytes = upsOut.save();
                     break;
                 case "bps":
-                    BPS bps = BPS.parseBPSFile(new MarcFile(patch));
-                    MarcFile bpsOut = bps.apply(new MarcFile(inputBytes), true);
+                    MarcFile bpsOut = BPS.applyBPSFile(new MarcFile(patch), new MarcFile(inputBytes), true);
                     outputBytes = bpsOut.save();
                     break;
                 default:
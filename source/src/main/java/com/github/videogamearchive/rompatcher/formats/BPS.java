@@ -2,18 +2,29 @@
 package com.github.videogamearchive.rompatcher.formats;
 
 import com.github.videogamearchive.rompatcher.MarcFile;
+import com.github.videogamearchive.util.Hashes;
+import java.io.EOFException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 import static com.github.videogamearchive.rompatcher.CRC.crc32;
 
 public class BPS {
-    private static final String BPS_MAGIC = "BPS1";
-    private static final int BPS_ACTION_SOURCE_READ=0;
-    private static final int  BPS_ACTION_TARGET_READ=1;
-    private static final int  BPS_ACTION_SOURCE_COPY=2;
-    private static final int  BPS_ACTION_TARGET_COPY=3;
+    static final String BPS_MAGIC = "BPS1";
+    static final int BPS_ACTION_SOURCE_READ=0;
+    static final int BPS_ACTION_TARGET_READ=1;
+    static final int BPS_ACTION_SOURCE_COPY=2;
+    static final int BPS_ACTION_TARGET_COPY=3;
+    private static final int OUTPUT_DIGEST_BLOCK_SIZE=65536;
+    static final long VLV_MAX_SHIFT=1L<<49; // the last shift, 2^56, still fits 7 more bits on a long
     public int sourceSize, targetSize;
     public String metaData;
     public List<BPSAction> actions;
@@ -26,12 +37,22 @@ public class BPS {
     }
     public boolean validateSource(MarcFile romFile){return this.sourceChecksum==crc32(romFile);}
     public MarcFile apply(MarcFile romFile, boolean validate){
+        return apply(romFile, validate, null);
+    }
+
+    /*
+     * - outputDigester: when given, also receives the output bytes as they are produced, the output checksum is then validated with it.
+     */
+    public MarcFile apply(MarcFile romFile, boolean validate, Hashes.Digester outputDigester){
         if(validate && !this.validateSource(romFile)){
             throw new Error("error_crc_input");
         }
 
 
         MarcFile tempFile=new MarcFile(this.targetSize);
+        ByteBuffer output=tempFile.asByteBuffer();
+        Hashes.Digester digester=(outputDigester==null && validate)?Hashes.Digester.crc32Only():outputDigester;
+        int digestedOffset=0;
 
 
         //patch
@@ -49,11 +70,9 @@ public class BPS {
 
             }else if(action.type==BPS_ACTION_SOURCE_COPY){
                 sourceRelativeOffset+=action.relativeOffset;
-                int actionLength=action.length;
-                while(actionLength-- != 0){
-                    tempFile.writeU8(romFile._u8array[sourceRelativeOffset]);
-                    sourceRelativeOffset++;
-                }
+                romFile.copyToFile(tempFile, sourceRelativeOffset, action.length, tempFile.offset);
+                tempFile.skip(action.length);
+                sourceRelativeOffset+=action.length;
             }else if(action.type==BPS_ACTION_TARGET_COPY){
                 targetRelativeOffset+=action.relativeOffset;
                 int actionLength=action.length;
@@ -62,9 +81,11 @@ public class BPS {
                     targetRelativeOffset++;
                 }
             }
+            digestedOffset=digestOutput(digester, output, tempFile.offset, digestedOffset, false);
         }
+        digestOutput(digester, output, tempFile.offset, digestedOffset, true);
 
-        if(validate && this.targetChecksum!=crc32(tempFile)){
+        if(validate && this.targetChecksum!=digester.crc32()){
             throw new Error("error_crc_output");
         }
 
@@ -73,6 +94,125 @@ public class BPS {
 
 
 
+    /*
+     * Applies the patch while decoding it, without building the actions list that parseBPSFile + apply requires.
+     */
+    public static MarcFile applyBPSFile(MarcFile patchFile, MarcFile romFile, boolean validate){
+        return applyBPSFile(patchFile, romFile, validate, null);
+    }
+
+    /*
+     * - outputDigester: see apply.
+     */
+    public static MarcFile applyBPSFile(MarcFile patchFile, MarcFile romFile, boolean validate, Hashes.Digester outputDigester){
+        MarcFile tempFile=new MarcFile(readTargetSize(patchFile));
+        applyBPSFile(patchFile, romFile, validate, outputDigester, tempFile);
+        return tempFile;
+    }
+
+    /*
+     * Same as applyBPSFile, but the output is written into the caller buffer, so it can be reused between patches.
+     * The returned file is backed by it, with the target size.
+     * - output: at least as big as the target, its previous contents are overwritten.
+     */
+    public static MarcFile applyBPSFile(MarcFile patchFile, MarcFile romFile, boolean validate, Hashes.Digester outputDigester, byte[] output){
+        int targetSize=readTargetSize(patchFile);
+        if(output.length<targetSize){
+            throw new IllegalArgumentException("output buffer is smaller than the target - Actual: " + output.length + " Expected: " + targetSize);
+        }
+        MarcFile tempFile=new MarcFile(output, targetSize);
+        applyBPSFile(patchFile, romFile, validate, outputDigester, tempFile);
+        return tempFile;
+    }
+
+    private static int readTargetSize(MarcFile patchFile){
+        patchFile.seek(4); //skip BPS1
+        BPS_readVLV(patchFile); //sourceSize
+        return BPS_readInt(patchFile);
+    }
+
+    private static void applyBPSFile(MarcFile patchFile, MarcFile romFile, boolean validate, Hashes.Digester outputDigester, MarcFile tempFile){
+        patchFile.littleEndian=true;
+
+        int endActionsOffset=patchFile.fileSize-12;
+        long sourceChecksum=patchFile.getU32(endActionsOffset);
+        long targetChecksum=patchFile.getU32(endActionsOffset+4);
+        long patchChecksum=patchFile.getU32(endActionsOffset+8);
+
+        if(patchChecksum!=crc32(patchFile, 0, true)){
+            throw new Error("error_crc_patch");
+        }
+
+        if(validate && sourceChecksum!=crc32(romFile)){
+            throw new Error("error_crc_input");
+        }
+
+        patchFile.seek(4); //skip BPS1
+        BPS_readVLV(patchFile); //sourceSize
+        BPS_readVLV(patchFile); //targetSize
+        int metaDataLength=BPS_readInt(patchFile);
+        patchFile.skip(metaDataLength);
+
+        //buffers, so the output can be on the heap or mapped
+        ByteBuffer target=tempFile.asByteBuffer();
+        ByteBuffer source=romFile.asByteBuffer();
+        ByteBuffer patch=patchFile.asByteBuffer();
+        Hashes.Digester digester=(outputDigester==null && validate)?Hashes.Digester.crc32Only():outputDigester;
+        int digestedOffset=0;
+
+        int sourceRelativeOffset=0;
+        int targetRelativeOffset=0;
+        while(patchFile.offset<endActionsOffset){
+            long data=BPS_readVLV(patchFile);
+            int type=(int) (data & 3);
+            int length=BPS_toInt((data >> 2)+1);
+
+            if(type==BPS_ACTION_SOURCE_READ){
+                target.put(tempFile.offset, source, tempFile.offset, length);
+            }else if(type==BPS_ACTION_TARGET_READ){
+                target.put(tempFile.offset, patch, patchFile.offset, length);
+                patchFile.skip(length);
+            }else{
+                int relativeOffset=BPS_readRelativeOffset(patchFile);
+                if(type==BPS_ACTION_SOURCE_COPY){
+                    sourceRelativeOffset+=relativeOffset;
+                    target.put(tempFile.offset, source, sourceRelativeOffset, length);
+                    sourceRelativeOffset+=length;
+                }else{
+                    targetRelativeOffset+=relativeOffset;
+                    if(targetRelativeOffset+length<=tempFile.offset){
+                        target.put(tempFile.offset, target, targetRelativeOffset, length);
+                    }else{
+                        //overlapping copy repeats the last bytes written, it needs to be done byte by byte
+                        for(int i=0, offset=tempFile.offset; i<length; i++){
+                            target.put(offset+i, target.get(targetRelativeOffset+i));
+                        }
+                    }
+                    targetRelativeOffset+=length;
+                }
+            }
+            tempFile.skip(length);
+            digestedOffset=digestOutput(digester, target, tempFile.offset, digestedOffset, false);
+        }
+        digestOutput(digester, target, tempFile.offset, digestedOffset, true);
+
+        if(validate && targetChecksum!=digester.crc32()){
+            throw new Error("error_crc_output");
+        }
+    }
+
+    /*
+     * Output is written sequentially and never rewritten, so the bytes before the current offset are final.
+     * They are digested once a block is ready, while still in cache, returns the new digested offset.
+     */
+    private static int digestOutput(Hashes.Digester digester, ByteBuffer target, int offset, int digestedOffset, boolean end){
+        if(digester!=null && (end || offset-digestedOffset>=OUTPUT_DIGEST_BLOCK_SIZE)){
+            digester.update(target.slice(digestedOffset, offset-digestedOffset));
+            return offset;
+        }
+        return digestedOffset;
+    }
+
     public static BPS parseBPSFile(MarcFile file){
 
 
@@ -82,10 +222,10 @@ public class BPS {
 
         file.seek(4); //skip BPS1
 
-        patch.sourceSize=BPS_readVLV(file);
-        patch.targetSize=BPS_readVLV(file);
+        patch.sourceSize=BPS_readInt(file);
+        patch.targetSize=BPS_readInt(file);
 
-        int metaDataLength=BPS_readVLV(file);
+        int metaDataLength=BPS_readInt(file);
         if(metaDataLength > 0){
             patch.metaData=file.readString(metaDataLength);
         }
@@ -93,24 +233,23 @@ public class BPS {
 
         int endActionsOffset=file.fileSize-12;
         while(file.offset<endActionsOffset){
-            int data=BPS_readVLV(file);
-            BPSAction action = new BPSAction( data & 3, (data >> 2)+1, null, null);
+            long data=BPS_readVLV(file);
+            BPSAction action = new BPSAction((int) (data & 3), BPS_toInt((data >> 2)+1), null, null);
 
             if(action.type==BPS_ACTION_TARGET_READ){
-                action.bytes=file.readBytes(action.length);
+                action.bytes=file.asByteBuffer().slice(file.offset, action.length);
+                file.skip(action.length);
 
             }else if(action.type==BPS_ACTION_SOURCE_COPY || action.type==BPS_ACTION_TARGET_COPY){
-                int relativeOffset=BPS_readVLV(file);
-                action.relativeOffset=((relativeOffset & 1) > 0? -1 : +1) * (relativeOffset >> 1);
+                action.relativeOffset=BPS_readRelativeOffset(file);
             }
 
             patch.actions.add(action);
         }
 
-        //file.seek(endActionsOffset);
-        patch.sourceChecksum=file.readU32();
-        patch.targetChecksum=file.readU32();
-        patch.patchChecksum=file.readU32();
+        patch.sourceChecksum=file.getU32(endActionsOffset);
+        patch.targetChecksum=file.getU32(endActionsOffset+4);
+        patch.patchChecksum=file.getU32(endActionsOffset+8);
 
         if(patch.patchChecksum!=crc32(file, 0, true)){
             throw new Error("error_crc_patch");
@@ -122,24 +261,351 @@ public class BPS {
 
 
 
-    private static int BPS_readVLV(MarcFile file){
-        int data=0, shift=1;
-        while(true){
-            int x = file.readU8();
-            data += (x & 0x7f) * shift;
-            if((x & 0x80) > 0)
-                break;
-            shift <<= 7;
-            data += shift;
+    /*
+     * Single patch from the first patch source to the second patch target, the same as applying both in sequence.
+     * The second patch source reads and copies are rewritten against the first patch actions, so the intermediate rom
+     * is never built, only the literal bytes the first patch writes to it are kept.
+     */
+    public static BPS compose(BPS first, BPS second) throws IOException {
+        if(first.targetSize!=second.sourceSize || first.targetChecksum!=second.sourceChecksum){
+            throw new Error("error_crc_input");
+        }
+
+        ComposeSegments intermediate=ComposeSegments.of(first);
+        ComposeEncoder encoder=new ComposeEncoder();
+        int outputOffset=0;
+        int sourceRelativeOffset=0;
+        int targetRelativeOffset=0;
+        for(BPSAction action: second.actions){
+            if(action.type==BPS_ACTION_SOURCE_READ){
+                intermediate.emit(outputOffset, action.length, encoder);
+            }else if(action.type==BPS_ACTION_TARGET_READ){
+                encoder.literal(action.bytes, 0, action.length);
+            }else if(action.type==BPS_ACTION_SOURCE_COPY){
+                sourceRelativeOffset+=action.relativeOffset;
+                intermediate.emit(sourceRelativeOffset, action.length, encoder);
+                sourceRelativeOffset+=action.length;
+            }else{
+                targetRelativeOffset+=action.relativeOffset;
+                encoder.targetCopy(targetRelativeOffset, action.length);
+                targetRelativeOffset+=action.length;
+            }
+            outputOffset+=action.length;
+        }
+
+        BPS patch=new BPS();
+        patch.sourceSize=first.sourceSize;
+        patch.targetSize=second.targetSize;
+        patch.metaData=second.metaData;
+        patch.actions=encoder.actions();
+        patch.sourceChecksum=first.sourceChecksum;
+        patch.targetChecksum=second.targetChecksum;
+        patch.patchChecksum=crc32(patch.export(), 0, true);
+        return patch;
+    }
+
+    /*
+     * A patch output described as consecutive segments, each one either read from the patch source at an offset or
+     * literal bytes kept in a pool. Adjacent segments that continue each other are merged.
+     */
+    private static class ComposeSegments {
+        int[] starts=new int[1024];
+        int[] lengths=new int[1024];
+        int[] offsets=new int[1024]; // source offset, or pool offset for literal segments
+        boolean[] literals=new boolean[1024];
+        int size;
+        int end; // output bytes described so far
+        byte[] pool=new byte[4096];
+        int poolSize;
+
+        static ComposeSegments of(BPS patch) {
+            ComposeSegments segments=new ComposeSegments();
+            int sourceRelativeOffset=0;
+            int targetRelativeOffset=0;
+            for(BPSAction action: patch.actions){
+                if(action.type==BPS_ACTION_SOURCE_READ){
+                    segments.add(false, action.length, segments.end);
+                }else if(action.type==BPS_ACTION_TARGET_READ){
+                    segments.reservePool(action.length);
+                    action.bytes.get(0, segments.pool, segments.poolSize, action.length);
+                    segments.add(true, action.length, segments.poolSize);
+                    segments.poolSize+=action.length;
+                }else if(action.type==BPS_ACTION_SOURCE_COPY){
+                    sourceRelativeOffset+=action.relativeOffset;
+                    segments.add(false, action.length, sourceRelativeOffset);
+                    sourceRelativeOffset+=action.length;
+                }else{
+                    targetRelativeOffset+=action.relativeOffset;
+                    segments.targetCopy(targetRelativeOffset, action.length);
+                    targetRelativeOffset+=action.length;
+                }
+            }
+            return segments;
+        }
+
+        /*
+         * A target copy can overlap the bytes it writes, then the copied range repeats with a period of end - from.
+         * Once a period is written it can be copied again from the start, so each step doubles the length copied.
+         */
+        void targetCopy(int from, int length) {
+            if(from<0 || from>=end){
+                throw new Error("error_bps_compose");
+            }
+            int period=end-from;
+            int copied=0;
+            while(copied<length){
+                int copyFrom=from+(copied%period);
+                int copyLength=Math.min(length-copied, end-copyFrom);
+                copyRange(copyFrom, copyLength);
+                copied+=copyLength;
+            }
+        }
+
+        private void copyRange(int from, int length) {
+            for(int i=find(from); length>0; i++){
+                int skip=from-starts[i];
+                int pieceLength=Math.min(length, lengths[i]-skip);
+                if(literals[i]){
+                    reservePool(pieceLength);
+                    System.arraycopy(pool, offsets[i]+skip, pool, poolSize, pieceLength);
+                    add(true, pieceLength, poolSize);
+                    poolSize+=pieceLength;
+                }else{
+                    add(false, pieceLength, offsets[i]+skip);
+                }
+                from+=pieceLength;
+                length-=pieceLength;
+            }
+        }
+
+        /*
+         * Passes the output range [from, from + length) to the encoder, as source reads and literal bytes.
+         */
+        void emit(int from, int length, ComposeEncoder encoder) {
+            for(int i=find(from); length>0; i++){
+                int skip=from-starts[i];
+                int pieceLength=Math.min(length, lengths[i]-skip);
+                if(literals[i]){
+                    encoder.literal(ByteBuffer.wrap(pool), offsets[i]+skip, pieceLength);
+                }else{
+                    encoder.source(offsets[i]+skip, pieceLength);
+                }
+                from+=pieceLength;
+                length-=pieceLength;
+            }
+        }
+
+        private void add(boolean literal, int length, int offset) {
+            int last=size-1;
+            if(last>=0 && literals[last]==literal && offsets[last]+lengths[last]==offset){
+                lengths[last]+=length;
+            }else{
+                if(size==starts.length){
+                    starts=Arrays.copyOf(starts, size*2);
+                    lengths=Arrays.copyOf(lengths, size*2);
+                    offsets=Arrays.copyOf(offsets, size*2);
+                    literals=Arrays.copyOf(literals, size*2);
+                }
+                starts[size]=end;
+                lengths[size]=length;
+                offsets[size]=offset;
+                literals[size]=literal;
+                size++;
+            }
+            end+=length;
+        }
+
+        private void reservePool(int length) {
+            if(poolSize+length>pool.length){
+                pool=Arrays.copyOf(pool, Math.max(pool.length*2, poolSize+length));
+            }
+        }
+
+        /*
+         * Index of the segment containing the output offset.
+         */
+        private int find(int offset) {
+            if(offset<0 || offset>=end){
+                throw new Error("error_bps_compose");
+            }
+            int low=0, high=size-1;
+            while(low<high){
+                int middle=(low+high+1)>>>1;
+                if(starts[middle]<=offset){
+                    low=middle;
+                }else{
+                    high=middle-1;
+                }
+            }
+            return low;
+        }
+    }
+
+    /*
+     * Encodes the composed actions, merging consecutive reads and using source reads where source copies land in place.
+     */
+    private static class ComposeEncoder {
+        final List<BPSAction> actions=new ArrayList<>();
+        BPSAction previous;
+        // target read bytes, sliced once all are written
+        byte[] literals=new byte[4096];
+        int literalsSize;
+        final List<BPSAction> targetReads=new ArrayList<>();
+        final List<Integer> targetReadOffsets=new ArrayList<>();
+        int outputOffset;
+        int sourceRelativeOffset;
+        int targetRelativeOffset;
+
+        void source(int offset, int length) {
+            if(offset==outputOffset){
+                if(previous!=null && previous.type==BPS_ACTION_SOURCE_READ){
+                    previous.length+=length;
+                }else{
+                    add(new BPSAction(BPS_ACTION_SOURCE_READ, length, null, null));
+                }
+            }else if(previous!=null && previous.type==BPS_ACTION_SOURCE_COPY && offset==sourceRelativeOffset){
+                previous.length+=length;
+                sourceRelativeOffset+=length;
+            }else{
+                add(new BPSAction(BPS_ACTION_SOURCE_COPY, length, null, offset-sourceRelativeOffset));
+                sourceRelativeOffset=offset+length;
+            }
+            outputOffset+=length;
+        }
+
+        void literal(ByteBuffer bytes, int offset, int length) {
+            if(previous==null || previous.type!=BPS_ACTION_TARGET_READ){
+                add(new BPSAction(BPS_ACTION_TARGET_READ, 0, null, null));
+                targetReads.add(previous);
+                targetReadOffsets.add(literalsSize);
+            }
+            if(literalsSize+length>literals.length){
+                literals=Arrays.copyOf(literals, Math.max(literals.length*2, literalsSize+length));
+            }
+            bytes.get(offset, literals, literalsSize, length);
+            literalsSize+=length;
+            previous.length+=length;
+            outputOffset+=length;
+        }
+
+        void targetCopy(int offset, int length) {
+            add(new BPSAction(BPS_ACTION_TARGET_COPY, length, null, offset-targetRelativeOffset));
+            targetRelativeOffset=offset+length;
+            outputOffset+=length;
+        }
+
+        private void add(BPSAction action) {
+            actions.add(action);
+            previous=action;
+        }
+
+        List<BPSAction> actions() {
+            for(int i=0; i<targetReads.size(); i++){
+                BPSAction action=targetReads.get(i);
+                action.bytes=ByteBuffer.wrap(literals).slice(targetReadOffsets.get(i), action.length);
+            }
+            return actions;
+        }
+    }
+
+    public record Header(long sourceSize, long targetSize, int metaDataLength, long sourceChecksum, long targetChecksum, long patchChecksum) {}
+
+    /*
+     * Reads the magic, the sizes and the footer checksums with two small positioned reads, the actions are not read.
+     * The patch checksum is returned but not validated, that requires reading the whole patch.
+     */
+    public static Header readHeader(Path path) throws IOException {
+        try(FileChannel channel=FileChannel.open(path, StandardOpenOption.READ)){
+            long size=channel.size();
+            if(size < BPS_MAGIC.length()+3+12){
+                throw new Error("error_bps_header");
+            }
+
+            //magic and 3 VLVs, BPS_readVLV rejects a VLV longer than 9 bytes
+            MarcFile header=new MarcFile(readFully(channel, 0, (int) Math.min(size-12, BPS_MAGIC.length()+3*9)));
+            if(!BPS_MAGIC.equals(header.readString(BPS_MAGIC.length()))){
+                throw new Error("error_bps_header");
+            }
+            long sourceSize, targetSize;
+            int metaDataLength;
+            try{
+                sourceSize=BPS_readVLV(header);
+                targetSize=BPS_readVLV(header);
+                metaDataLength=BPS_readInt(header);
+            }catch(IndexOutOfBoundsException e){ //truncated patch, the VLVs run into the footer
+                throw new Error("error_bps_header");
+            }
+
+            MarcFile footer=new MarcFile(readFully(channel, size-12, 12));
+            footer.littleEndian=true;
+            return new Header(sourceSize, targetSize, metaDataLength, footer.getU32(0), footer.getU32(4), footer.getU32(8));
+        }
+    }
+
+    private static byte[] readFully(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer=ByteBuffer.allocate(length);
+        while(buffer.hasRemaining()){
+            if(channel.read(buffer, position+buffer.position()) == -1){
+                throw new EOFException();
+            }
+        }
+        return buffer.array();
+    }
+
+    /*
+     * VLVs are decoded in 64 bits, values that don't fit on a long are rejected instead of wrapping around.
+     */
+    static long BPS_readVLV(MarcFile file){
+        long data=0, shift=1;
+        try{
+            while(true){
+                int x = file.getU8(file.offset++);
+                data = Math.addExact(data, (x & 0x7f) * shift);
+                if((x & 0x80) > 0)
+                    break;
+                if(shift > VLV_MAX_SHIFT)
+                    throw new ArithmeticException();
+                shift <<= 7;
+                data = Math.addExact(data, shift);
+            }
+        }catch(ArithmeticException e){
+            throw new Error("error_bps_vlv");
         }
 
-        file._lastRead=data;
         return data;
     }
-    private static void BPS_writeVLV(MarcFile file, int data){
+
+    /*
+     * Sizes, lengths and offsets are addressed with ints, a VLV out of that range can't be applied by this tool.
+     */
+    static int BPS_readInt(MarcFile file){
+        return BPS_toInt(BPS_readVLV(file));
+    }
+    static int BPS_toInt(long value){
+        if(value < Integer.MIN_VALUE || value > Integer.MAX_VALUE){
+            throw new Error("error_bps_too_big");
+        }
+        return (int) value;
+    }
+    static int BPS_readRelativeOffset(MarcFile file){
+        long relativeOffset=BPS_readVLV(file);
+        return BPS_toInt(((relativeOffset & 1) > 0? -1 : +1) * (relativeOffset >> 1));
+    }
+
+    /*
+     * Action and relative offset VLV values, computed in 64 bits so lengths over 2^29 and offsets over 2^30 don't overflow.
+     */
+    private static long BPS_actionData(BPSAction action){
+        return ((long) (action.length-1)<<2) + action.type;
+    }
+    static long BPS_relativeOffsetData(long relativeOffset){
+        return (Math.abs(relativeOffset)<<1)+(relativeOffset<0?1:0);
+    }
+
+    static void BPS_writeVLV(MarcFile file, long data){
         while(true){
-            int x = data & 0x7f;
-            data >>= 7;
+            int x = (int) (data & 0x7f);
+            data >>>= 7;
             if(data == 0){
                 file.writeU8(0x80 | x);
                 break;
@@ -148,14 +614,13 @@ public class BPS {
             data--;
         }
     }
-    private static int BPS_getVLVLen(int data){
+    private static int BPS_getVLVLen(long data){
         if (data < 0) {
-            throw new RuntimeException("VLV is negative: This is more likely an overflow due to a BPS_ACTION_SOURCE_READ length being too big for this tool to handle. Please use other tool. Sorry.");
+            throw new RuntimeException("VLV is negative: the value doesn't fit on 63 bits.");
         }
         int len=0;
         while(true){
-            int x = data & 0x7f;
-            data >>= 7;
+            data >>>= 7;
             if(data == 0){
                 len++;
                 break;
@@ -175,12 +640,12 @@ public class BPS {
         patchFileSize += metaData.length();
         for(int i=0; i < this.actions.size(); i++){
             BPSAction action= this.actions.get(i);
-            patchFileSize+=BPS_getVLVLen(((action.length-1)<<2) + action.type);
+            patchFileSize+=BPS_getVLVLen(BPS_actionData(action));
 
             if(action.type==BPS_ACTION_TARGET_READ){
                 patchFileSize+=action.length;
             }else if(action.type==BPS_ACTION_SOURCE_COPY || action.type==BPS_ACTION_TARGET_COPY){
-                patchFileSize+=BPS_getVLVLen((Math.abs(action.relativeOffset)<<1)+(action.relativeOffset<0?1:0));
+                patchFileSize+=BPS_getVLVLen(BPS_relativeOffsetData(action.relativeOffset));
             }
         }
         patchFileSize+=12;
@@ -198,11 +663,11 @@ public class BPS {
 
         for(int i=0; i<this.actions.size(); i++){
             BPSAction action= this.actions.get(i);
-            BPS_writeVLV(patchFile, ((action.length-1)<<2) + action.type);
+            BPS_writeVLV(patchFile, BPS_actionData(action));
             if(action.type == BPS_ACTION_TARGET_READ) {
                 patchFile.writeBytes(action.bytes);
             }else if(action.type == BPS_ACTION_SOURCE_COPY || action.type == BPS_ACTION_TARGET_COPY){
-                BPS_writeVLV(patchFile, (Math.abs(action.relativeOffset)<<1)+(action.relativeOffset<0?1:0));
+                BPS_writeVLV(patchFile, BPS_relativeOffsetData(action.relativeOffset));
             }
         }
 
@@ -213,25 +678,53 @@ public class BPS {
         return patchFile;
     }
 
-    public static class BPS_Node {
-        public int offset=0;
-        public BPS_Node next=null;
-        public void delete() {
-            if(this.next != null)
-                this.next = null;
-        }
+    public static final int DELTA_UNLIMITED_CHAIN_DEPTH = Integer.MAX_VALUE;
+    private static final int DELTA_HASH_BITS = 20;
+    public static final int DELTA_PARALLEL_CHUNK_SIZE = 1048576;
+    private static final int DELTA_PARALLEL_MIN_CHUNK_SIZE = 65536;
+    public enum Mode {
+        Linear,
+        Delta,
+        SuffixArray
     }
     public static BPS createBPSFromFiles(MarcFile original, MarcFile modified, boolean deltaMode) throws IOException {
+        return createBPSFromFiles(original, modified, deltaMode?Mode.Delta:Mode.Linear);
+    }
+
+    public static BPS createBPSFromFiles(MarcFile original, MarcFile modified, Mode mode) throws IOException {
+        switch(mode) {
+            case Delta:
+                return createBPSFromActions(original, modified, createBPSFromFilesDelta(original, modified));
+            case SuffixArray:
+                return createBPSFromActions(original, modified, createBPSFromFilesSuffixArray(original, modified));
+            default:
+                return createBPSFromActions(original, modified, createBPSFromFilesLinear(original, modified));
+        }
+    }
+
+    /*
+     * Delta mode with a bounded match search, see createBPSFromFilesDelta.
+     */
+    public static BPS createBPSFromFiles(MarcFile original, MarcFile modified, int maxChainDepth, int hashLength) throws IOException {
+        return createBPSFromActions(original, modified, createBPSFromFilesDelta(original, modified, maxChainDepth, hashLength));
+    }
+
+    /*
+     * Delta mode encoded in parallel on the pool, see createBPSFromFilesDeltaParallel.
+     */
+    public static BPS createBPSFromFiles(MarcFile original, MarcFile modified, int maxChainDepth, int hashLength, ForkJoinPool pool, boolean deterministic) throws IOException {
+        return createBPSFromActions(original, modified, createBPSFromFilesDeltaParallel(original, modified, maxChainDepth, hashLength, pool, deterministic));
+    }
+
+    static BPS createBPSFromFiles(MarcFile original, MarcFile modified, int maxChainDepth, int hashLength, ForkJoinPool pool, int chunkSize) throws IOException {
+        return createBPSFromActions(original, modified, createBPSFromFilesDeltaParallel(original, modified, maxChainDepth, hashLength, pool, chunkSize));
+    }
+
+    private static BPS createBPSFromActions(MarcFile original, MarcFile modified, List<BPSAction> actions) throws IOException {
         BPS patch=new BPS();
         patch.sourceSize = original.fileSize;
         patch.targetSize = modified.fileSize;
-
-//        if(original.fileSize <= 4194304) {
-        if(deltaMode) {
-            patch.actions = createBPSFromFilesDelta(original, modified);
-        } else {
-            patch.actions = createBPSFromFilesLinear(original, modified);
-        }
+        patch.actions = actions;
 
         patch.sourceChecksum= crc32(original);
         patch.targetChecksum= crc32(modified);
@@ -243,9 +736,9 @@ public class BPS {
 public static List<BPSAction> createBPSFromFilesLinear(MarcFile original, MarcFile modified){
         List<BPSAction> patchActions = new ArrayList<>();
 
-        /* references to match original beat code */
-        int[] sourceData= original._u8array;
-        int[] targetData= modified._u8array;
+        /* references to match original beat code, buffers so mapped files are supported */
+        ByteBuffer sourceData= original.asByteBuffer();
+        ByteBuffer targetData= modified.asByteBuffer();
         int sourceSize = original.fileSize;
         int targetSize = modified.fileSize;
         final int Granularity=1;
@@ -270,24 +763,25 @@ public static List<BPSAction> createBPSFromFilesLinear(MarcFile original, MarcFi
 
 
 
+        int commonSize = Math.min(sourceSize, targetSize);
         while(outputOffset < targetSize) {
+            //lengths are found with vectorized mismatches, a byte is checked first to skip the call on target read runs
             int sourceLength = 0;
-            for(int n = 0; outputOffset + n < Math.min(sourceSize, targetSize); n++) {
-                if(sourceData[outputOffset + n] != targetData[outputOffset + n]) break;
-                sourceLength++;
+            if(outputOffset < commonSize && sourceData.get(outputOffset) == targetData.get(outputOffset)) {
+                sourceLength = mismatchLength(sourceData, outputOffset, targetData, outputOffset, commonSize - outputOffset);
             }
 
+            //target compared with itself one byte behind, the first difference ends the repetition
             int rleLength = 0;
-            for(int n = 1; outputOffset + n < targetSize; n++) {
-                if(targetData[outputOffset] != targetData[outputOffset + n]) break;
-                rleLength++;
+            if(outputOffset + 1 < targetSize && targetData.get(outputOffset) == targetData.get(outputOffset + 1)) {
+                rleLength = mismatchLength(targetData, outputOffset + 1, targetData, outputOffset, targetSize - outputOffset - 1);
             }
 
             if(rleLength >= 4) {
                 //write byte to repeat
                 targetReadLength++;
                 outputOffset++;
-                targetReadFlush(targetReadLength, outputOffset, targetData, patchActions); targetReadLength = 0;
+                targetReadFlush(targetReadLength, outputOffset, modified, patchActions); targetReadLength = 0;
 
                 //copy starting from repetition byte
                 //encode(TargetCopy | ((rleLength - 1) << 2));
@@ -297,7 +791,7 @@ public static List<BPSAction> createBPSFromFilesLinear(MarcFile original, MarcFi
                 outputOffset += rleLength;
                 targetRelativeOffset = outputOffset - 1;
             } else if(sourceLength >= 4) {
-                targetReadFlush(targetReadLength, outputOffset, targetData, patchActions); targetReadLength = 0;
+                targetReadFlush(targetReadLength, outputOffset, modified, patchActions); targetReadLength = 0;
                 //encode(SourceRead | ((sourceLength - 1) << 2));
                 patchActions.add(new BPSAction(BPS_ACTION_SOURCE_READ, sourceLength, null, null));
                 outputOffset += sourceLength;
@@ -307,109 +801,322 @@ public static List<BPSAction> createBPSFromFilesLinear(MarcFile original, MarcFi
             }
         }
 
-        targetReadFlush(targetReadLength, outputOffset, targetData, patchActions); targetReadLength = 0;
+        targetReadFlush(targetReadLength, outputOffset, modified, patchActions); targetReadLength = 0;
 
 
 
         return patchActions;
     }
 
+    /*
+     * Length of the common prefix of both ranges, Arrays.mismatch for heap buffers, ByteBuffer.mismatch for mapped ones.
+     */
+    private static int mismatchLength(ByteBuffer a, int aOffset, ByteBuffer b, int bOffset, int length) {
+        int mismatch;
+        if(a.hasArray() && b.hasArray()) {
+            int aStart = a.arrayOffset() + aOffset, bStart = b.arrayOffset() + bOffset;
+            mismatch = Arrays.mismatch(a.array(), aStart, aStart + length, b.array(), bStart, bStart + length);
+        } else {
+            mismatch = a.slice(aOffset, length).mismatch(b.slice(bOffset, length));
+        }
+        return (mismatch == -1)?length:mismatch;
+    }
+
     /* delta implementation from https://github.com/chiya/beat/blob/master/nall/beat/delta.hpp */
     public static List<BPSAction> createBPSFromFilesDelta(MarcFile original, MarcFile modified) {
-        List<BPSAction> patchActions = new ArrayList<>();
+        return createBPSFromFilesDelta(original, modified, DELTA_UNLIMITED_CHAIN_DEPTH, 2);
+    }
 
+    /*
+     * Offsets sharing the same hash are chained on the head/prev arrays, newest first, as beat does with its node trees.
+     * - maxChainDepth: maximum number of candidates compared per offset, bounds the time spent on big roms with repetitive data.
+     * - hashLength: bytes hashed to build the chains (2 to 4), 2 is the exact beat symbol; longer hashes mean shorter chains with less false candidates.
+     * Unlimited depth and hashLength 2 generate the same patch as beat.
+     */
+    public static List<BPSAction> createBPSFromFilesDelta(MarcFile original, MarcFile modified, int maxChainDepth, int hashLength) {
+        DeltaSourceIndex sourceIndex = new DeltaSourceIndex(original, hashLength);
+        return deltaStitch(List.of(deltaEncode(sourceIndex, modified, maxChainDepth, 0, modified.fileSize)), modified);
+    }
 
-        /* references to match original beat code */
-        int[] sourceData= original._u8array;
-        int[] targetData= modified._u8array;
-        int sourceSize = original.fileSize;
-        int targetSize = modified.fileSize;
-        final int Granularity=1;
+    /*
+     * Delta mode encoding target chunks in parallel, see createBPSFromFilesDelta.
+     * The source index is shared read-only, each chunk keeps its own target chains, so target copies and matches don't cross chunk boundaries.
+     * Chunk actions are stitched back in order, merging the TargetRead and contiguous copies split by a boundary.
+     * - deterministic: fixed size chunks, the patch is byte-identical whatever the pool parallelism, one thread included.
+     *   Otherwise the target is split in one chunk per pool thread, less boundaries but the patch depends on the machine.
+     */
+    public static List<BPSAction> createBPSFromFilesDeltaParallel(MarcFile original, MarcFile modified, int maxChainDepth, int hashLength, ForkJoinPool pool, boolean deterministic) {
+        int chunkSize;
+        if(deterministic) {
+            chunkSize = DELTA_PARALLEL_CHUNK_SIZE;
+        } else {
+            chunkSize = Math.max(DELTA_PARALLEL_MIN_CHUNK_SIZE, (modified.fileSize + pool.getParallelism() - 1) / pool.getParallelism());
+        }
+        return createBPSFromFilesDeltaParallel(original, modified, maxChainDepth, hashLength, pool, chunkSize);
+    }
 
+    static List<BPSAction> createBPSFromFilesDeltaParallel(MarcFile original, MarcFile modified, int maxChainDepth, int hashLength, ForkJoinPool pool, int chunkSize) {
+        DeltaSourceIndex sourceIndex = new DeltaSourceIndex(original, hashLength);
+        List<ForkJoinTask<DeltaMatches>> tasks = new ArrayList<>();
+        for(int chunkStart = 0; chunkStart < modified.fileSize; chunkStart += chunkSize) {
+            int start = chunkStart;
+            int end = (int) Math.min((long) chunkStart + chunkSize, modified.fileSize);
+            tasks.add(pool.submit(() -> deltaEncode(sourceIndex, modified, maxChainDepth, start, end)));
+        }
+        List<DeltaMatches> chunks = new ArrayList<>(tasks.size());
+        for(ForkJoinTask<DeltaMatches> task:tasks) {
+            chunks.add(task.join());
+        }
+        return deltaStitch(chunks, modified);
+    }
 
+    /*
+     * Source hash chains, read-only once built.
+     */
+    private static class DeltaSourceIndex {
+        final ByteBuffer sourceData;
+        final int sourceSize;
+        final int hashLength;
+        final int[] sourceHead;
+        final int[] sourcePrev;
+
+        DeltaSourceIndex(MarcFile original, int hashLength) {
+            if(hashLength < 2 || hashLength > 4) {
+                throw new IllegalArgumentException("hashLength should be between 2 and 4 - Actual: " + hashLength);
+            }
+            this.sourceData = original.asByteBuffer();
+            this.sourceSize = original.fileSize;
+            this.hashLength = hashLength;
+            this.sourceHead = new int[deltaHashTableSize(hashLength)];
+            this.sourcePrev = new int[sourceSize];
+            Arrays.fill(sourceHead, -1);
+
+            //source tree creation
+            for(int offset=0; offset < sourceSize; offset++) {
+                int symbol = deltaHash(sourceData, offset, sourceSize, hashLength);
+                if(symbol == -1) {
+                    sourcePrev[offset] = -1;
+                    continue;
+                }
+                sourcePrev[offset] = sourceHead[symbol];
+                sourceHead[symbol] = offset;
+            }
+        }
+    }
 
-        int sourceRelativeOffset=0;
-        int targetRelativeOffset=0;
-        int outputOffset=0;
+    /*
+     * Matches of a target chunk with absolute offsets, as mode, length, offset triplets.
+     */
+    private static class DeltaMatches {
+        int[] matches = new int[3 * 1024];
+        int size;
 
+        void add(int mode, int length, int offset) {
+            if(size + 3 > matches.length) {
+                matches = Arrays.copyOf(matches, matches.length * 2);
+            }
+            matches[size++] = mode;
+            matches[size++] = length;
+            matches[size++] = offset;
+        }
+    }
 
+    private static DeltaMatches deltaEncode(DeltaSourceIndex sourceIndex, MarcFile modified, int maxChainDepth, int chunkStart, int chunkEnd) {
+        DeltaMatches patchMatches = new DeltaMatches();
 
-        BPS_Node[] sourceTree = new BPS_Node[65536];
-        BPS_Node[] targetTree = new BPS_Node[65536];
-        for(int n=0; n<65536; n++){
-            sourceTree[n] = null;
-            targetTree[n] = null;
-        }
+        /* references to match original beat code, buffers so mapped files are supported */
+        ByteBuffer sourceData= sourceIndex.sourceData;
+        ByteBuffer targetData= modified.asByteBuffer();
+        int sourceSize = sourceIndex.sourceSize;
+        int targetSize = modified.fileSize;
+        int hashLength = sourceIndex.hashLength;
+        int[] sourceHead = sourceIndex.sourceHead;
+        int[] sourcePrev = sourceIndex.sourcePrev;
+        final int Granularity=1;
 
-        //source tree creation
-        for(int offset=0; offset < sourceSize; offset++) {
-            int symbol = sourceData[offset + 0];
-            //sourceChecksum = crc32_adjust(sourceChecksum, symbol);
-            if(offset < sourceSize - 1)
-                symbol |= sourceData[offset + 1] << 8;
-            BPS_Node node=new BPS_Node();
-            node.offset=offset;
-            node.next=sourceTree[symbol];
-            sourceTree[symbol] = node;
-        }
+        int outputOffset=chunkStart;
 
-        int targetReadLength = 0;
+        int[] targetHead = new int[deltaHashTableSize(hashLength)];
+        int[] targetPrev = new int[chunkEnd - chunkStart];
+        Arrays.fill(targetHead, -1);
 
+        while(outputOffset<chunkEnd){
+            int maxLength = 0, maxOffset = 0, mode = BPS_ACTION_TARGET_READ;
 
+            int symbol = deltaHash(targetData, outputOffset, targetSize, hashLength);
 
+            { //source read
+                int length = 0, offset = outputOffset;
+                while(offset < sourceSize && offset < chunkEnd && sourceData.get(offset) == targetData.get(offset)) {
+                    length++;
+                    offset++;
+                }
+                if(length > maxLength) { maxLength = length; mode = BPS_ACTION_SOURCE_READ; }
+            }
 
+            if(symbol != -1) { //source copy
+                int node = sourceHead[symbol];
+                for(int depth = 0; node != -1 && depth < maxChainDepth; depth++) {
+                    int length = 0, x = node, y = outputOffset;
+                    while(x < sourceSize && y < chunkEnd && sourceData.get(x++) == targetData.get(y++)) length++;
+                    if(length > maxLength) { maxLength = length; maxOffset = node; mode = BPS_ACTION_SOURCE_COPY; }
+                    node = sourcePrev[node];
+                }
+            }
 
+            if(symbol != -1) { //target copy
+                int node = targetHead[symbol];
+                for(int depth = 0; node != -1 && depth < maxChainDepth; depth++) {
+                    int length = 0, x = node, y = outputOffset;
+                    while(y < chunkEnd && targetData.get(x++) == targetData.get(y++)) length++;
+                    if(length > maxLength) { maxLength = length; maxOffset = node; mode = BPS_ACTION_TARGET_COPY; }
+                    node = targetPrev[node - chunkStart];
+                }
 
+                //target tree append
+                targetPrev[outputOffset - chunkStart] = targetHead[symbol];
+                targetHead[symbol] = outputOffset;
+            }
 
+            { //target read
+                if(maxLength < 4) {
+                    maxLength = Math.min(Granularity, chunkEnd - outputOffset);
+                    mode = BPS_ACTION_TARGET_READ;
+                }
+            }
 
+            patchMatches.add(mode, maxLength, maxOffset);
+            outputOffset += maxLength;
+        }
 
+        return patchMatches;
+    }
 
+    /*
+     * Converts chunk matches into actions: relative offsets, grouped TargetRead commands.
+     * Actions continuing the previous one across a chunk boundary are merged into it.
+     */
+    private static List<BPSAction> deltaStitch(List<DeltaMatches> chunks, MarcFile modified) {
+        List<BPSAction> patchActions = new ArrayList<>();
+        int sourceRelativeOffset=0;
+        int targetRelativeOffset=0;
+        int outputOffset=0;
+        int targetReadLength = 0;
+        BPSAction previous = null;
+
+        for(DeltaMatches chunk:chunks) {
+            int[] matches = chunk.matches;
+            for(int i = 0; i < chunk.size; i += 3) {
+                int mode = matches[i], maxLength = matches[i + 1], maxOffset = matches[i + 2];
+
+                if(mode != BPS_ACTION_TARGET_READ) { targetReadFlush(targetReadLength, outputOffset, modified, patchActions); targetReadLength = 0; }
+
+                switch(mode) {
+                    case BPS_ACTION_SOURCE_READ:
+                        if(previous != null && previous.type == BPS_ACTION_SOURCE_READ) {
+                            previous.length += maxLength;
+                        } else {
+                            //encode(BPS_ACTION_SOURCE_READ | ((maxLength - 1) << 2));
+                            previous = new BPSAction(BPS_ACTION_SOURCE_READ, maxLength, null, null);
+                            patchActions.add(previous);
+                        }
+                        break;
+                    case BPS_ACTION_TARGET_READ:
+                        //delay write to group sequential TargetRead commands into one
+                        targetReadLength += maxLength;
+                        previous = null;
+                        break;
+                    case BPS_ACTION_SOURCE_COPY:
+                    case BPS_ACTION_TARGET_COPY:
+                        boolean isSourceCopy = mode == BPS_ACTION_SOURCE_COPY;
+                        int relativeBase = isSourceCopy?sourceRelativeOffset:targetRelativeOffset;
+                        if(previous != null && previous.type == mode && maxOffset == relativeBase) {
+                            previous.length += maxLength;
+                        } else {
+                            //encode(mode | ((maxLength - 1) << 2));
+                            //encode((relativeOffset < 0) | (abs(relativeOffset) << 1));
+                            previous = new BPSAction(mode, maxLength, null, maxOffset - relativeBase);
+                            patchActions.add(previous);
+                        }
+                        if(isSourceCopy) {
+                            sourceRelativeOffset = maxOffset + maxLength;
+                        } else {
+                            targetRelativeOffset = maxOffset + maxLength;
+                        }
+                        break;
+                }
 
+                outputOffset += maxLength;
+            }
+        }
 
+        targetReadFlush(targetReadLength, outputOffset, modified, patchActions); targetReadLength = 0;
 
+        return patchActions;
+    }
 
+    /*
+     * Same greedy loop as delta mode, but every match is the longest one available: source read at the same offset,
+     * source copy from any source offset or target copy from any previous target offset.
+     * Beat only indexes the target offsets where an action starts, so this finds target copies delta mode can't.
+     * A suffix array (SA-IS) over source + separator + target gives the longest previous factor of every target offset in O(n).
+     * Uses around 24 bytes of memory per source and target byte, meant for roms of a few MB.
+     */
+    public static List<BPSAction> createBPSFromFilesSuffixArray(MarcFile original, MarcFile modified) {
+        List<BPSAction> patchActions = new ArrayList<>();
 
+        ByteBuffer sourceData= original.asByteBuffer();
+        ByteBuffer targetData= modified.asByteBuffer();
+        int sourceSize = original.fileSize;
+        int targetSize = modified.fileSize;
+        final int Granularity=1;
+        final int Separator=256;
+
+        //text: source, separator, target; the separator stops source matches from running into the target
+        int targetStart = sourceSize + 1;
+        int[] text = new int[targetStart + targetSize];
+        for(int offset=0; offset < sourceSize; offset++) text[offset] = sourceData.get(offset) & 0xff;
+        text[sourceSize] = Separator;
+        for(int offset=0; offset < targetSize; offset++) text[targetStart + offset] = targetData.get(offset) & 0xff;
+
+        int[] matchLength = new int[targetSize];
+        int[] matchOffset = new int[targetSize];
+        {
+            int[] sa = SuffixArray.sais(text, Separator);
+            int[] lcp = SuffixArray.lcp(text, sa);
+            text = null;
+            SuffixArray.longestPreviousFactor(sa, lcp, targetStart, matchLength, matchOffset);
+        }
 
+        int sourceRelativeOffset=0;
+        int targetRelativeOffset=0;
+        int outputOffset=0;
+        int targetReadLength = 0;
 
-        while(outputOffset<modified.fileSize){
+        while(outputOffset < targetSize) {
             int maxLength = 0, maxOffset = 0, mode = BPS_ACTION_TARGET_READ;
 
-            int symbol = targetData[outputOffset + 0];
-            if(outputOffset < targetSize - 1) symbol |= targetData[outputOffset + 1] << 8;
-
             { //source read
                 int length = 0, offset = outputOffset;
-                while(offset < sourceSize && offset < targetSize && sourceData[offset] == targetData[offset]) {
+                while(offset < sourceSize && offset < targetSize && sourceData.get(offset) == targetData.get(offset)) {
                     length++;
                     offset++;
                 }
                 if(length > maxLength) { maxLength = length; mode = BPS_ACTION_SOURCE_READ; }
             }
 
-            { //source copy
-                BPS_Node node = sourceTree[symbol];
-                while(node != null) {
-                    int length = 0, x = node.offset, y = outputOffset;
-                    while(x < sourceSize && y < targetSize && sourceData[x++] == targetData[y++]) length++;
-                    if(length > maxLength) { maxLength = length; maxOffset = node.offset; mode = BPS_ACTION_SOURCE_COPY; }
-                    node = node.next;
-                }
-            }
-
-            { //target copy
-                BPS_Node node = targetTree[symbol];
-                while(node != null) {
-                    int length = 0, x = node.offset, y = outputOffset;
-                    while(y < targetSize && targetData[x++] == targetData[y++]) length++;
-                    if(length > maxLength) { maxLength = length; maxOffset = node.offset; mode = BPS_ACTION_TARGET_COPY; }
-                    node = node.next;
+            { //source copy or target copy, whichever is the longest previous factor
+                int length = matchLength[outputOffset], offset = matchOffset[outputOffset];
+                if(length > maxLength) {
+                    maxLength = length;
+                    if(offset < sourceSize) {
+                        maxOffset = offset;
+                        mode = BPS_ACTION_SOURCE_COPY;
+                    } else {
+                        maxOffset = offset - targetStart;
+                        mode = BPS_ACTION_TARGET_COPY;
+                    }
                 }
-
-                //target tree append
-                node = new BPS_Node();
-                node.offset = outputOffset;
-                node.next = targetTree[symbol];
-                targetTree[symbol] = node;
             }
 
             { //target read
@@ -419,20 +1126,17 @@ public static List<BPSAction> createBPSFromFilesLinear(MarcFile original, MarcFi
                 }
             }
 
-            if(mode != BPS_ACTION_TARGET_READ) { targetReadFlush(targetReadLength, outputOffset, targetData, patchActions); targetReadLength = 0; }
+            if(mode != BPS_ACTION_TARGET_READ) { targetReadFlush(targetReadLength, outputOffset, modified, patchActions); targetReadLength = 0; }
 
             switch(mode) {
                 case BPS_ACTION_SOURCE_READ:
-                    //encode(BPS_ACTION_SOURCE_READ | ((maxLength - 1) << 2));
                     patchActions.add(new BPSAction(BPS_ACTION_SOURCE_READ, maxLength, null, null));
                     break;
                 case BPS_ACTION_TARGET_READ:
-                    //delay write to group sequential TargetRead commands into one
                     targetReadLength += maxLength;
                     break;
                 case BPS_ACTION_SOURCE_COPY:
                 case BPS_ACTION_TARGET_COPY:
-                    //encode(mode | ((maxLength - 1) << 2));
                     int relativeOffset;
                     if(mode == BPS_ACTION_SOURCE_COPY) {
                         relativeOffset = maxOffset - sourceRelativeOffset;
@@ -441,7 +1145,6 @@ public static List<BPSAction> createBPSFromFilesLinear(MarcFile original, MarcFi
                         relativeOffset = maxOffset - targetRelativeOffset;
                         targetRelativeOffset = maxOffset + maxLength;
                     }
-                    //encode((relativeOffset < 0) | (abs(relativeOffset) << 1));
                     patchActions.add(new BPSAction(mode, maxLength, null, relativeOffset));
                     break;
             }
@@ -449,30 +1152,47 @@ public static List<BPSAction> createBPSFromFilesLinear(MarcFile original, MarcFi
             outputOffset += maxLength;
         }
 
-        targetReadFlush(targetReadLength, outputOffset, targetData, patchActions); targetReadLength = 0;
-
+        targetReadFlush(targetReadLength, outputOffset, modified, patchActions); targetReadLength = 0;
 
         return patchActions;
     }
-    private static void targetReadFlush(int targetReadLength, int outputOffset, int[] targetData, List<BPSAction> patchActions) {
+
+    /*
+     * hashLength 2 is the beat symbol, the last byte of the file is hashed alone.
+     * Longer hashes return -1 when there are not enough bytes left, matches shorter than 4 bytes are not used anyway.
+     */
+    private static int deltaHashTableSize(int hashLength) {
+        return (hashLength == 2)?65536:(1 << DELTA_HASH_BITS);
+    }
+    private static int deltaHash(ByteBuffer data, int offset, int size, int hashLength) {
+        if(hashLength == 2) {
+            int symbol = data.get(offset) & 0xff;
+            if(offset < size - 1) symbol |= (data.get(offset + 1) & 0xff) << 8;
+            return symbol;
+        }
+        if(offset > size - hashLength) {
+            return -1;
+        }
+        int value = 0;
+        for(int i = 0; i < hashLength; i++) {
+            value |= (data.get(offset + i) & 0xff) << (i << 3);
+        }
+        return (value * 0x9E3779B1) >>> (32 - DELTA_HASH_BITS);
+    }
+    private static void targetReadFlush(int targetReadLength, int outputOffset, MarcFile modified, List<BPSAction> patchActions) {
         if(targetReadLength > 0) {
             //encode(TargetRead | ((targetReadLength - 1) << 2));
-            BPSAction action = new BPSAction(BPS_ACTION_TARGET_READ, targetReadLength, new ArrayList<>(), null);
-            patchActions.add(action);
+            //write(targetData[offset++]), the bytes are a slice of modified, no copy is made
             int offset = outputOffset - targetReadLength;
-            while(targetReadLength > 0) {
-                //write(targetData[offset++]);
-                action.bytes.add(targetData[offset++]);
-                targetReadLength--;
-            }
+            patchActions.add(new BPSAction(BPS_ACTION_TARGET_READ, targetReadLength, modified.asByteBuffer().slice(offset, targetReadLength), null));
         }
     }
     public static class BPSAction {
         public Integer type;
         public Integer length;
-        public List<Integer> bytes;
+        public ByteBuffer bytes; // target read bytes, a slice of the patch or the modified file
         public Integer relativeOffset;
-        public BPSAction(int type, int length, List<Integer> bytes, Integer relativeOffset) {
+        public BPSAction(int type, int length, ByteBuffer bytes, Integer relativeOffset) {
             this.type = type;
             this.length = length;
             this.bytes = bytes;
@@ -0,0 +1,440 @@
+/* Apache 2 License, Copyright (c) 2023 Juan Fuentes, based on Rom Patcher JS by Marc Robledo */
+package com.github.videogamearchive.rompatcher.formats;
+
+import com.github.videogamearchive.util.Hashes;
+
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import static com.github.videogamearchive.rompatcher.formats.BPS.BPS_ACTION_SOURCE_COPY;
+import static com.github.videogamearchive.rompatcher.formats.BPS.BPS_ACTION_SOURCE_READ;
+import static com.github.videogamearchive.rompatcher.formats.BPS.BPS_ACTION_TARGET_COPY;
+import static com.github.videogamearchive.rompatcher.formats.BPS.BPS_ACTION_TARGET_READ;
+import static com.github.videogamearchive.rompatcher.formats.BPS.BPS_relativeOffsetData;
+
+/*
+ * BPS patches applied and created between files, with 64-bit sizes and offsets, for images over 2 GB, as disc ones.
+ * Files are read and written through channels with positioned reads and writes, in blocks, nothing is mapped and the
+ * heap used doesn't depend on their size. The MarcFile based methods on BPS address ints, for roms up to 2 GB.
+ */
+public class BPSFiles {
+    private static final int BLOCK_SIZE=1048576;
+    private static final int TARGET_READ_MAX_LENGTH=BLOCK_SIZE; // longer target reads are encoded as several actions
+
+    private BPSFiles() {
+        // Private constructor to make clear that is a non-instantiable utility class
+    }
+
+    public static void applyBPSFile(Path patchPath, Path romPath, Path outputPath, boolean validate) throws IOException {
+        applyBPSFile(patchPath, romPath, outputPath, validate, null);
+    }
+
+    /*
+     * Same as BPS.applyBPSFile, the output is written to outputPath and target copies read back from it.
+     * - outputPath: created or truncated.
+     * - outputDigester: see BPS.apply.
+     */
+    public static void applyBPSFile(Path patchPath, Path romPath, Path outputPath, boolean validate, Hashes.Digester outputDigester) throws IOException {
+        try(FileChannel patch=FileChannel.open(patchPath, StandardOpenOption.READ);
+            FileChannel rom=FileChannel.open(romPath, StandardOpenOption.READ);
+            FileChannel output=FileChannel.open(outputPath, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)){
+            long patchSize=patch.size();
+            if(patchSize<BPS.BPS_MAGIC.length()+3+12){
+                throw new Error("error_bps_header");
+            }
+            ByteBuffer footer=ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(patch, footer, patchSize-12);
+            long sourceChecksum=footer.getInt(0);
+            long targetChecksum=footer.getInt(4);
+            long patchChecksum=footer.getInt(8);
+
+            if(patchChecksum!=crc32(patch, patchSize-4)){
+                throw new Error("error_crc_patch");
+            }
+
+            if(validate && sourceChecksum!=crc32(rom, rom.size())){
+                throw new Error("error_crc_input");
+            }
+
+            PatchReader patchReader=new PatchReader(patch, patchSize-12);
+            for(int i=0; i<BPS.BPS_MAGIC.length(); i++){
+                if(patchReader.read()!=BPS.BPS_MAGIC.charAt(i)){
+                    throw new Error("error_bps_header");
+                }
+            }
+            patchReader.readVLV(); //sourceSize
+            long targetSize=patchReader.readVLV();
+            patchReader.skip(patchReader.readVLV()); //metadata
+
+            Hashes.Digester digester=(outputDigester==null && validate)?Hashes.Digester.crc32Only():outputDigester;
+            OutputWriter target=new OutputWriter(output, digester);
+
+            long sourceRelativeOffset=0;
+            long targetRelativeOffset=0;
+            while(patchReader.position<patchReader.end){
+                long data=patchReader.readVLV();
+                int type=(int) (data & 3);
+                long length=(data >> 2)+1;
+
+                if(type==BPS_ACTION_SOURCE_READ){
+                    target.copy(rom, target.written, length);
+                }else if(type==BPS_ACTION_TARGET_READ){
+                    while(length>0){
+                        ByteBuffer bytes=patchReader.next(length);
+                        length-=bytes.remaining();
+                        target.write(bytes);
+                    }
+                }else{
+                    long relativeOffset=patchReader.readRelativeOffset();
+                    if(type==BPS_ACTION_SOURCE_COPY){
+                        sourceRelativeOffset+=relativeOffset;
+                        target.copy(rom, sourceRelativeOffset, length);
+                        sourceRelativeOffset+=length;
+                    }else{
+                        targetRelativeOffset+=relativeOffset;
+                        target.copy(output, targetRelativeOffset, length);
+                        targetRelativeOffset+=length;
+                    }
+                }
+            }
+            if(target.written!=targetSize){
+                throw new Error("error_bps_target_size");
+            }
+
+            if(validate && targetChecksum!=digester.crc32()){
+                throw new Error("error_crc_output");
+            }
+        }
+    }
+
+    /*
+     * Same patch as BPS.createBPSFromFiles in linear mode, written to patchPath while the files are compared.
+     * Only target reads over TARGET_READ_MAX_LENGTH differ, they are split.
+     */
+    public static void createBPSFileLinear(Path originalPath, Path modifiedPath, Path patchPath) throws IOException {
+        try(FileChannel original=FileChannel.open(originalPath, StandardOpenOption.READ);
+            FileChannel modified=FileChannel.open(modifiedPath, StandardOpenOption.READ);
+            CheckedOutputStream patch=new CheckedOutputStream(new BufferedOutputStream(Files.newOutputStream(patchPath), BLOCK_SIZE), new CRC32())){
+            long sourceSize=original.size();
+            long targetSize=modified.size();
+
+            patch.write(BPS.BPS_MAGIC.getBytes(StandardCharsets.ISO_8859_1));
+            writeVLV(patch, sourceSize);
+            writeVLV(patch, targetSize);
+            writeVLV(patch, 0); //metadata
+
+            //a window per read position, so comparing ahead doesn't reload the others
+            Window source=new Window(original);
+            Window target=new Window(modified);
+            Window targetCommon=new Window(modified);
+            Window targetAhead=new Window(modified);
+            byte[] targetRead=new byte[TARGET_READ_MAX_LENGTH];
+            int targetReadLength=0;
+
+            long targetRelativeOffset=0;
+            long outputOffset=0;
+            long commonSize=Math.min(sourceSize, targetSize);
+            while(outputOffset<targetSize){
+                long sourceLength=0;
+                if(outputOffset<commonSize && source.get(outputOffset)==targetCommon.get(outputOffset)){
+                    sourceLength=Window.mismatch(source, outputOffset, targetCommon, outputOffset, commonSize-outputOffset);
+                }
+
+                long rleLength=0;
+                if(outputOffset+1<targetSize && target.get(outputOffset)==targetAhead.get(outputOffset+1)){
+                    rleLength=Window.mismatch(targetAhead, outputOffset+1, target, outputOffset, targetSize-outputOffset-1);
+                }
+
+                if(rleLength>=4){
+                    //write byte to repeat
+                    if(targetReadLength==targetRead.length){
+                        targetReadLength=targetReadFlush(patch, targetRead, targetReadLength);
+                    }
+                    targetRead[targetReadLength++]=target.get(outputOffset);
+                    outputOffset++;
+                    targetReadLength=targetReadFlush(patch, targetRead, targetReadLength);
+
+                    //copy starting from repetition byte
+                    long relativeOffset=(outputOffset-1)-targetRelativeOffset;
+                    writeVLV(patch, ((rleLength-1)<<2)+BPS_ACTION_TARGET_COPY);
+                    writeVLV(patch, BPS_relativeOffsetData(relativeOffset));
+                    outputOffset+=rleLength;
+                    targetRelativeOffset=outputOffset-1;
+                }else if(sourceLength>=4){
+                    targetReadLength=targetReadFlush(patch, targetRead, targetReadLength);
+                    writeVLV(patch, ((sourceLength-1)<<2)+BPS_ACTION_SOURCE_READ);
+                    outputOffset+=sourceLength;
+                }else{
+                    if(targetReadLength==targetRead.length){
+                        targetReadLength=targetReadFlush(patch, targetRead, targetReadLength);
+                    }
+                    targetRead[targetReadLength++]=target.get(outputOffset);
+                    outputOffset++;
+                }
+            }
+            targetReadFlush(patch, targetRead, targetReadLength);
+
+            ByteBuffer checksums=ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+            checksums.putInt((int) crc32(original, sourceSize));
+            checksums.putInt((int) crc32(modified, targetSize));
+            patch.write(checksums.array(), 0, 8);
+            checksums.putInt((int) patch.getChecksum().getValue());
+            patch.write(checksums.array(), 8, 4);
+        }
+    }
+
+    /*
+     * Writes the pending target read bytes as an action, returns the new pending length.
+     */
+    private static int targetReadFlush(OutputStream patch, byte[] targetRead, int targetReadLength) throws IOException {
+        if(targetReadLength>0){
+            writeVLV(patch, ((long) (targetReadLength-1)<<2)+BPS_ACTION_TARGET_READ);
+            patch.write(targetRead, 0, targetReadLength);
+        }
+        return 0;
+    }
+
+    private static void writeVLV(OutputStream out, long data) throws IOException {
+        while(true){
+            int x=(int) (data & 0x7f);
+            data>>>=7;
+            if(data==0){
+                out.write(0x80 | x);
+                break;
+            }
+            out.write(x);
+            data--;
+        }
+    }
+
+    /*
+     * Sign-extended as CRC.crc32, of the first length bytes.
+     */
+    private static long crc32(FileChannel channel, long length) throws IOException {
+        CRC32 crc32=new CRC32();
+        ByteBuffer block=ByteBuffer.allocate(BLOCK_SIZE);
+        for(long position=0; position<length; position+=block.limit()){
+            block.clear().limit((int) Math.min(BLOCK_SIZE, length-position));
+            readFully(channel, block, position);
+            crc32.update(block.flip());
+        }
+        return (int) crc32.getValue();
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        int start=buffer.position();
+        while(buffer.hasRemaining()){
+            if(channel.read(buffer, position+buffer.position()-start)==-1){
+                throw new EOFException();
+            }
+        }
+    }
+
+    /*
+     * Patch bytes read in blocks, up to the footer.
+     */
+    private static class PatchReader {
+        private final FileChannel channel;
+        private final ByteBuffer block=ByteBuffer.allocate(BLOCK_SIZE).limit(0);
+        private final long end;
+        private long position; // of the next byte
+
+        private PatchReader(FileChannel channel, long end) {
+            this.channel=channel;
+            this.end=end;
+        }
+
+        private void fill() throws IOException {
+            if(position>=end){
+                throw new Error("error_bps_eof");
+            }
+            block.clear().limit((int) Math.min(BLOCK_SIZE, end-position));
+            readFully(channel, block, position);
+            block.flip();
+        }
+
+        private int read() throws IOException {
+            if(!block.hasRemaining()){
+                fill();
+            }
+            position++;
+            return block.get() & 0xff;
+        }
+
+        /*
+         * The next bytes, up to length, a view of the block valid until the next read.
+         */
+        private ByteBuffer next(long length) throws IOException {
+            if(!block.hasRemaining()){
+                fill();
+            }
+            int n=(int) Math.min(length, block.remaining());
+            ByteBuffer bytes=block.slice(block.position(), n);
+            block.position(block.position()+n);
+            position+=n;
+            return bytes;
+        }
+
+        private void skip(long length) throws IOException {
+            while(length>0){
+                length-=next(length).remaining();
+            }
+        }
+
+        /*
+         * As BPS.BPS_readVLV, values that don't fit on a long are rejected.
+         */
+        private long readVLV() throws IOException {
+            long data=0, shift=1;
+            try{
+                while(true){
+                    int x=read();
+                    data=Math.addExact(data, (x & 0x7f) * shift);
+                    if((x & 0x80) > 0)
+                        break;
+                    if(shift > BPS.VLV_MAX_SHIFT)
+                        throw new ArithmeticException();
+                    shift<<=7;
+                    data=Math.addExact(data, shift);
+                }
+            }catch(ArithmeticException e){
+                throw new Error("error_bps_vlv");
+            }
+            return data;
+        }
+
+        private long readRelativeOffset() throws IOException {
+            long relativeOffset=readVLV();
+            return ((relativeOffset & 1) > 0? -1 : +1) * (relativeOffset >> 1);
+        }
+    }
+
+    /*
+     * Output written sequentially and digested as it is written, so it is digested in order.
+     */
+    private static class OutputWriter {
+        private final FileChannel channel;
+        private final Hashes.Digester digester;
+        private final ByteBuffer block=ByteBuffer.allocate(BLOCK_SIZE);
+        private long written;
+
+        private OutputWriter(FileChannel channel, Hashes.Digester digester) {
+            this.channel=channel;
+            this.digester=digester;
+        }
+
+        private void write(ByteBuffer bytes) throws IOException {
+            if(digester!=null){
+                digester.update(bytes.duplicate());
+            }
+            while(bytes.hasRemaining()){
+                written+=channel.write(bytes, written);
+            }
+        }
+
+        /*
+         * Copies length bytes from the position of the rom or the output itself, target copies only read bytes
+         * already written. An overlapping copy repeats its first period bytes, they are read once and repeated in
+         * the block, instead of reading back what was just written.
+         */
+        private void copy(FileChannel from, long position, long length) throws IOException {
+            long period=(from==channel)?written-position:Long.MAX_VALUE;
+            if(position<0 || period<=0){
+                throw new Error("error_bps_offset");
+            }
+            if(period<Math.min(length, BLOCK_SIZE)){
+                block.clear().limit((int) period);
+                readFully(from, block, position);
+                int patternLength=(int) Math.min(length, (BLOCK_SIZE/period)*period);
+                for(int filled=(int) period; filled<patternLength; filled*=2){
+                    System.arraycopy(block.array(), 0, block.array(), filled, Math.min(filled, patternLength-filled));
+                }
+                while(length>0){
+                    int n=(int) Math.min(length, patternLength);
+                    write(block.clear().limit(n));
+                    length-=n;
+                }
+                return;
+            }
+            while(length>0){
+                int n=(int) Math.min(length, BLOCK_SIZE);
+                block.clear().limit(n);
+                readFully(from, block, position);
+                write(block.flip());
+                position+=n;
+                length-=n;
+            }
+        }
+    }
+
+    /*
+     * A block of the file around the last read position, reloaded from the position read when it is out of it.
+     */
+    private static class Window {
+        private final FileChannel channel;
+        private final long size;
+        private final byte[] bytes=new byte[BLOCK_SIZE];
+        private long start;
+        private int length;
+
+        private Window(FileChannel channel) throws IOException {
+            this.channel=channel;
+            this.size=channel.size();
+        }
+
+        private void load(long position) throws IOException {
+            start=position;
+            length=(int) Math.min(BLOCK_SIZE, size-position);
+            readFully(channel, ByteBuffer.wrap(bytes, 0, length), position);
+        }
+
+        private byte get(long position) throws IOException {
+            if(position<start || position>=start+length){
+                load(position);
+            }
+            return bytes[(int) (position-start)];
+        }
+
+        /*
+         * Bytes of the window from the position, reloading it from there when fewer than needed are left on it.
+         */
+        private int available(long position, long needed) throws IOException {
+            long end=start+length;
+            if(position<start || position>=end || (end-position<Math.min(needed, BLOCK_SIZE) && end<size)){
+                load(position);
+            }
+            return (int) (start+length-position);
+        }
+
+        /*
+         * Length of the common prefix of both ranges, compared block by block.
+         */
+        private static long mismatch(Window a, long aPosition, Window b, long bPosition, long length) throws IOException {
+            long matched=0;
+            while(matched<length){
+                long remaining=length-matched;
+                int n=(int) Math.min(remaining, Math.min(a.available(aPosition+matched, remaining), b.available(bPosition+matched, remaining)));
+                int aStart=(int) (aPosition+matched-a.start);
+                int bStart=(int) (bPosition+matched-b.start);
+                int mismatch=Arrays.mismatch(a.bytes, aStart, aStart+n, b.bytes, bStart, bStart+n);
+                if(mismatch!=-1){
+                    return matched+mismatch;
+                }
+                matched+=n;
+            }
+            return matched;
+        }
+    }
+}
@@ -2,9 +2,13 @@
 package com.github.videogamearchive.rompatcher.formats;
 
 import com.github.videogamearchive.rompatcher.MarcFile;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 
 public class IPS {
     public static final String IPS_MAGIC="PATCH";
@@ -20,7 +24,16 @@ public class IPS {
         this.truncate=0; //=false
     }
     public void addSimpleRecord(int o, List<Integer> d){
-        this.records.add(new IpsRecord(o, null, IPS_RECORD_SIMPLE, d.size(), d, null));
+        byte[] data=new byte[d.size()];
+        for(int i=0; i<data.length; i++)
+            data[i]=d.get(i).byteValue();
+        this.addSimpleRecord(o, ByteBuffer.wrap(data));
+    }
+    /*
+     * The record keeps the given slice as its payload, no copy is made.
+     */
+    public void addSimpleRecord(int o, ByteBuffer d){
+        this.records.add(new IpsRecord(o, null, IPS_RECORD_SIMPLE, d.remaining(), d.slice(), 0));
     }
     public void addRLERecord(int o,int l,int b){
         this.records.add(new IpsRecord(o, null, IPS_RECORD_RLE, l, null, b));
@@ -40,7 +53,7 @@ public class IPS {
             if(this.records.get(i).type==IPS_RECORD_RLE)
                 patchFileSize+=(3+2+2+1); //offset+0x0000+length+RLE byte to be written
             else
-                patchFileSize+=(3+2+ this.records.get(i).data.size()); //offset+length+data
+                patchFileSize+=(3+2+ this.records.get(i).length); //offset+length+data
         }
         patchFileSize+=3; //EOF string
         if(this.truncate > 0)
@@ -56,8 +69,9 @@ public class IPS {
                 tempFile.writeU16(rec.length);
                 tempFile.writeU8(rec.oneByte);
             }else{
-                tempFile.writeU16(rec.data.size());
-                tempFile.writeBytes(rec.data);
+                tempFile.writeU16(rec.length);
+                rec.data.get(0, tempFile._u8array, tempFile.offset, rec.length);
+                tempFile.skip(rec.length);
             }
         }
 
@@ -83,14 +97,8 @@ public class IPS {
             int newFileSize=romFile.fileSize;
             for(int i=0; i<this.records.size(); i++){
                 IpsRecord rec=this.records.get(i);
-                if(rec.type==IPS_RECORD_RLE){
-                    if(rec.offset+rec.length>newFileSize){
-                        newFileSize=rec.offset+rec.length;
-                    }
-                }else{
-                    if(rec.offset+rec.data.size()>newFileSize){
-                        newFileSize=rec.offset+rec.data.size();
-                    }
+                if(rec.offset+rec.length>newFileSize){
+                    newFileSize=rec.offset+rec.length;
                 }
             }
 
@@ -105,19 +113,93 @@ public class IPS {
 
         romFile.seek(0);
 
-        for(int i=0; i<this.records.size(); i++){
-            tempFile.seek(this.records.get(i).offset);
-            if(this.records.get(i).type==IPS_RECORD_RLE){
-                for(int j=0; j<this.records.get(i).length; j++)
-                    tempFile.writeU8(this.records.get(i).oneByte);
-            }else{
-                tempFile.writeBytes(this.records.get(i).data);
+        byte[] target=tempFile._u8array;
+        int targetSize=tempFile.fileSize;
+        if(this.isOrdered()){
+            for(int i=0; i<this.records.size(); i++){
+                IpsRecord rec=this.records.get(i);
+                write(target, targetSize, rec, 0, rec.offset, rec.length);
+            }
+        }else{
+            List<int[]> plan=this.writePlan();
+            for(int i=0; i<plan.size(); i++){
+                int[] write=plan.get(i);
+                write(target, targetSize, this.records.get(write[0]), write[1], write[2], write[3]);
             }
         }
 
         return tempFile;
     }
 
+    /*
+     * Writes length bytes of the record, starting at recordOffset, into the target at targetOffset.
+     * Bytes beyond the target size are dropped, as when the patch is truncating the file.
+     */
+    private static void write(byte[] target, int targetSize, IpsRecord rec, int recordOffset, int targetOffset, int length){
+        length=Math.min(length, targetSize-targetOffset);
+        if(length<=0)
+            return;
+        if(rec.type==IPS_RECORD_RLE){
+            Arrays.fill(target, targetOffset, targetOffset+length, rec.oneByte.byteValue());
+        }else{
+            rec.data.get(recordOffset, target, targetOffset, length);
+        }
+    }
+
+    /*
+     * Records sorted by offset without overlaps, usually the case, can be written as they are.
+     */
+    private boolean isOrdered(){
+        int end=0;
+        for(int i=0; i<this.records.size(); i++){
+            IpsRecord rec=this.records.get(i);
+            if(rec.offset<end)
+                return false;
+            end=rec.offset+rec.length;
+        }
+        return true;
+    }
+
+    /*
+     * Coalesces overlapping records so every target byte is written once, in offset order.
+     * Records are visited from the last one, as later records overwrite previous ones, keeping the parts not yet covered.
+     * Returns {record index, record offset, target offset, length} writes sorted by target offset.
+     */
+    private List<int[]> writePlan(){
+        TreeMap<Integer, Integer> covered=new TreeMap<>(); //start -> end of ranges already written by a later record
+        List<int[]> plan=new ArrayList<>();
+        for(int i=this.records.size()-1; i>=0; i--){
+            IpsRecord rec=this.records.get(i);
+            int start=rec.offset;
+            int end=rec.offset+rec.length;
+            Map.Entry<Integer, Integer> previous=covered.floorEntry(start);
+            int position=(previous!=null && previous.getValue()>start)?previous.getValue():start;
+            while(position<end){
+                Map.Entry<Integer, Integer> next=covered.ceilingEntry(position);
+                int gapEnd=(next==null)?end:Math.min(end, next.getKey());
+                if(gapEnd>position){
+                    plan.add(new int[]{i, position-rec.offset, position, gapEnd-position});
+                }
+                if(next==null || next.getKey()>=end)
+                    break;
+                position=next.getValue();
+            }
+            //merge the record range into the covered ranges
+            int mergedStart=start, mergedEnd=end;
+            if(previous!=null && previous.getValue()>=start){
+                mergedStart=previous.getKey();
+                mergedEnd=Math.max(mergedEnd, previous.getValue());
+            }
+            for(Map.Entry<Integer, Integer> next=covered.ceilingEntry(start); next!=null && next.getKey()<=end; next=covered.ceilingEntry(start)){
+                mergedEnd=Math.max(mergedEnd, next.getValue());
+                covered.remove(next.getKey());
+            }
+            covered.put(mergedStart, mergedEnd);
+        }
+        plan.sort(Comparator.comparingInt(write -> write[2]));
+        return plan;
+    }
+
 
 
 
@@ -126,23 +208,27 @@ public class IPS {
         file.seek(5);
 
         while(!file.isEOF()){
-            int offset=file.readU24();
+            int offset=file.getU24(file.offset);
+            file.skip(3);
 
             if(offset==0x454f46){ /* EOF */
                 if(file.isEOF()){
                     break;
                 }else if((file.offset+3)==file.fileSize){
-                    patchFile.truncate=file.readU24();
+                    patchFile.truncate=file.getU24(file.offset);
                     break;
                 }
             }
 
-            int length=file.readU16();
+            int length=file.getU16(file.offset);
+            file.skip(2);
 
             if(length==IPS_RECORD_RLE){
-                patchFile.addRLERecord(offset, file.readU16(), file.readU8());
+                patchFile.addRLERecord(offset, file.getU16(file.offset), file.getU8(file.offset+2));
+                file.skip(3);
             }else{
-                patchFile.addSimpleRecord(offset, file.readBytes(length));
+                patchFile.addSimpleRecord(offset, file.asByteBuffer().slice(file.offset, length));
+                file.skip(length);
             }
         }
         return patchFile;
@@ -156,6 +242,9 @@ public class IPS {
             patch.truncate=modified.fileSize;
         }
 
+        //records payloads are slices of modified, no copy is made
+        ByteBuffer modifiedData=modified.asByteBuffer();
+
         //solucion: guardar startOffset y endOffset (ir mirando de 6 en 6 hacia atrás)
         IpsRecord previousRecord = new IpsRecord(0, 0, 0xdeadbeef, 0, null, null);
         while(!modified.isEOF()){
@@ -164,15 +253,17 @@ public class IPS {
 
             if(b1!=b2){
                 boolean RLEmode=true;
-                List<Integer> differentData=new ArrayList<>();
+                //different data is a slice of modified, from startOffset
+                int differentDataSize=0;
                 int startOffset=modified.offset-1;
+                int firstByte=b2;
 
-                while(b1!=b2 && differentData.size()<0xffff){
-                    differentData.add(b2);
-                    if(b2!=differentData.get(0))
+                while(b1!=b2 && differentDataSize<0xffff){
+                    differentDataSize++;
+                    if(b2!=firstByte)
                         RLEmode=false;
 
-                    if(modified.isEOF() || differentData.size()==0xffff)
+                    if(modified.isEOF() || differentDataSize==0xffff)
                         break;
 
                     b1=original.isEOF()?0x00:original.readU8();
@@ -184,21 +275,17 @@ public class IPS {
                 int distance=startOffset-(previousRecord.offset+previousRecord.length);
                 if(
                         previousRecord.type==IPS_RECORD_SIMPLE &&
-                                distance<6 && (previousRecord.length+distance+differentData.size())<0xffff
+                                distance<6 && (previousRecord.length+distance+differentDataSize)<0xffff
                 ){
-                    if(RLEmode && differentData.size()>6){
+                    if(RLEmode && differentDataSize>6){
                         // separate a potential RLE record
                         original.seek(startOffset);
                         modified.seek(startOffset);
                         previousRecord = new IpsRecord(0, 0, 0xdeadbeef, 0, null, null);
                     }else{
-                        // merge both records
-                        while(distance-- > 0){
-                            previousRecord.data.add(modified._u8array[previousRecord.offset+previousRecord.length]);
-                            previousRecord.length++;
-                        }
-                        previousRecord.data.addAll(differentData);
-                        previousRecord.length=previousRecord.data.size();
+                        // merge both records, the gap between them is taken from modified too
+                        previousRecord.length+=distance+differentDataSize;
+                        previousRecord.data=modifiedData.slice(previousRecord.offset, previousRecord.length);
                     }
                 }else{
                     if(startOffset>=IPS_MAX_SIZE){
@@ -206,10 +293,10 @@ public class IPS {
                         //return null;
                     }
 
-                    if(RLEmode && differentData.size()>2){
-                        patch.addRLERecord(startOffset, differentData.size(), differentData.get(0));
+                    if(RLEmode && differentDataSize>2){
+                        patch.addRLERecord(startOffset, differentDataSize, firstByte);
                     }else{
-                        patch.addSimpleRecord(startOffset, differentData);
+                        patch.addSimpleRecord(startOffset, modifiedData.slice(startOffset, differentDataSize));
                     }
                     previousRecord=patch.records.get(patch.records.size() - 1);
                 }
@@ -224,7 +311,7 @@ public class IPS {
             int lastOffset=lastRecord.offset+lastRecord.length;
 
             if(lastOffset<modified.fileSize){
-                patch.addSimpleRecord(modified.fileSize-1, new ArrayList<>(Arrays.asList(0x00)));
+                patch.addSimpleRecord(modified.fileSize-1, ByteBuffer.wrap(new byte[]{0x00}));
             }
         }
 
@@ -237,10 +324,10 @@ public class IPS {
         public Integer startOffset;
         public int type;
         public int length;
-        public List<Integer> data;
+        public ByteBuffer data;
         public Integer oneByte;
 
-        public IpsRecord(int offset, Integer startOffset, int type, int length, List<Integer> data, Integer oneByte) {
+        public IpsRecord(int offset, Integer startOffset, int type, int length, ByteBuffer data, Integer oneByte) {
             this.offset = offset;
             this.startOffset = startOffset;
             this.type = type;
@@ -0,0 +1,212 @@
+/* Apache 2 License, Copyright (c) 2023 Juan Fuentes, based on Rom Patcher JS by Marc Robledo */
+package com.github.videogamearchive.rompatcher.formats;
+
+import com.github.videogamearchive.rompatcher.MarcFile;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static com.github.videogamearchive.rompatcher.CRC.crc32;
+import static com.github.videogamearchive.rompatcher.formats.BPS.BPS_ACTION_SOURCE_COPY;
+import static com.github.videogamearchive.rompatcher.formats.BPS.BPS_ACTION_SOURCE_READ;
+import static com.github.videogamearchive.rompatcher.formats.BPS.BPS_ACTION_TARGET_COPY;
+import static com.github.videogamearchive.rompatcher.formats.BPS.BPS_ACTION_TARGET_READ;
+import static com.github.videogamearchive.rompatcher.formats.BPS.BPS_readInt;
+import static com.github.videogamearchive.rompatcher.formats.BPS.BPS_readRelativeOffset;
+import static com.github.videogamearchive.rompatcher.formats.BPS.BPS_readVLV;
+import static com.github.videogamearchive.rompatcher.formats.BPS.BPS_toInt;
+
+/*
+ * Read-only view of the rom a BPS patch produces, without applying it.
+ * The patch actions are indexed once by target offset, reads are then resolved on demand against the source rom and
+ * the patch, following target copies back to the bytes they copy.
+ * The target checksum can't be validated, that requires the whole output, use BPS.applyBPSFile for that.
+ */
+public class PatchedRomView {
+    private final ByteBuffer patchData;
+    private final ByteBuffer romData;
+    private final int targetSize;
+    // per action: target offset where it starts, type and offset where its bytes come from
+    // (source offset for reads and copies from the source, patch offset for target reads, target offset for target copies)
+    private int[] starts = new int[1024];
+    private byte[] types = new byte[1024];
+    private int[] offsets = new int[1024];
+    private int actions;
+
+    /*
+     * - validate: validates the source checksum, it reads the whole source rom.
+     */
+    public PatchedRomView(MarcFile patchFile, MarcFile romFile, boolean validate) {
+        patchFile.littleEndian=true;
+
+        int endActionsOffset=patchFile.fileSize-12;
+        long sourceChecksum=patchFile.getU32(endActionsOffset);
+        long patchChecksum=patchFile.getU32(endActionsOffset+8);
+
+        if(patchChecksum!=crc32(patchFile, 0, true)){
+            throw new Error("error_crc_patch");
+        }
+
+        if(validate && sourceChecksum!=crc32(romFile)){
+            throw new Error("error_crc_input");
+        }
+
+        patchFile.seek(4); //skip BPS1
+        int sourceSize=BPS_readInt(patchFile);
+        this.targetSize=BPS_readInt(patchFile);
+        int metaDataLength=BPS_readInt(patchFile);
+        patchFile.skip(metaDataLength);
+
+        int outputOffset=0;
+        int sourceRelativeOffset=0;
+        int targetRelativeOffset=0;
+        while(patchFile.offset<endActionsOffset){
+            long data=BPS_readVLV(patchFile);
+            int type=(int) (data & 3);
+            int length=BPS_toInt((data >> 2)+1);
+
+            if(type==BPS_ACTION_SOURCE_READ){
+                add(type, outputOffset, outputOffset, length<=sourceSize-outputOffset);
+            }else if(type==BPS_ACTION_TARGET_READ){
+                add(type, outputOffset, patchFile.offset, length<=endActionsOffset-patchFile.offset);
+                patchFile.skip(length);
+            }else{
+                int relativeOffset=BPS_readRelativeOffset(patchFile);
+                if(type==BPS_ACTION_SOURCE_COPY){
+                    sourceRelativeOffset+=relativeOffset;
+                    add(type, outputOffset, sourceRelativeOffset, sourceRelativeOffset>=0 && length<=sourceSize-sourceRelativeOffset);
+                    sourceRelativeOffset+=length;
+                }else{
+                    targetRelativeOffset+=relativeOffset;
+                    add(type, outputOffset, targetRelativeOffset, targetRelativeOffset>=0 && targetRelativeOffset<outputOffset);
+                    targetRelativeOffset+=length;
+                }
+            }
+            outputOffset+=length;
+        }
+        if(outputOffset!=targetSize || sourceSize>romFile.fileSize){
+            throw new Error("error_bps_view");
+        }
+
+        this.patchData=patchFile.asByteBuffer();
+        this.romData=romFile.asByteBuffer();
+    }
+
+    private void add(int type, int start, int offset, boolean valid) {
+        if(!valid){
+            throw new Error("error_bps_view");
+        }
+        if(actions==starts.length){
+            starts=Arrays.copyOf(starts, actions*2);
+            types=Arrays.copyOf(types, actions*2);
+            offsets=Arrays.copyOf(offsets, actions*2);
+        }
+        starts[actions]=start;
+        types[actions]=(byte) type;
+        offsets[actions]=offset;
+        actions++;
+    }
+
+    public int size() {
+        return targetSize;
+    }
+
+    public int getU8(int offset) {
+        return read(offset, 1)[0] & 0xff;
+    }
+
+    public byte[] read(int offset, int length) {
+        byte[] bytes=new byte[length];
+        read(offset, bytes, 0, length);
+        return bytes;
+    }
+
+    /*
+     * Reads the target bytes [offset, offset + length) into bytes, from bytesOffset.
+     * Target copies push the range they copy as pending work, instead of recursing, so long chains can't overflow the stack.
+     * Overlapping target copies resolve their period once, a fill pushed below it repeats it once it is read.
+     */
+    public void read(int offset, byte[] bytes, int bytesOffset, int length) {
+        if(offset<0 || length<0 || offset>targetSize-length){
+            throw new IndexOutOfBoundsException("offset " + offset + " and length " + length + " out of target size " + targetSize);
+        }
+
+        int[] pending=new int[4*16]; // target offset, bytes offset, length and period, 0 for reads, to fill the length with
+        int top=0;
+        pending=push(pending, top, offset, bytesOffset, length, 0);
+        top+=4;
+        while(top>0){
+            int period=pending[--top];
+            length=pending[--top];
+            bytesOffset=pending[--top];
+            offset=pending[--top];
+
+            if(period>0){
+                //the first period bytes are read, repeat them doubling the filled bytes each time
+                for(int filled=period; filled<length; filled+=Math.min(filled, length-filled)){
+                    System.arraycopy(bytes, bytesOffset, bytes, bytesOffset+filled, Math.min(filled, length-filled));
+                }
+                continue;
+            }
+
+            for(int i=find(offset); length>0; i++){
+                int end=(i+1<actions)?starts[i+1]:targetSize;
+                int skip=offset-starts[i];
+                int pieceLength=Math.min(length, end-offset);
+
+                if(types[i]==BPS_ACTION_TARGET_READ){
+                    patchData.get(offsets[i]+skip, bytes, bytesOffset, pieceLength);
+                }else if(types[i]==BPS_ACTION_TARGET_COPY){
+                    //an overlapping copy repeats its first period bytes, all of them are before the action
+                    int copyPeriod=starts[i]-offsets[i];
+                    int periodSkip=skip%copyPeriod;
+                    int resolved=Math.min(pieceLength, copyPeriod);
+                    if(pieceLength>resolved){
+                        pending=push(pending, top, 0, bytesOffset, pieceLength, copyPeriod);
+                        top+=4;
+                    }
+                    //the period from the piece start, wrapping around to the period start
+                    int head=Math.min(resolved, copyPeriod-periodSkip);
+                    pending=push(pending, top, offsets[i]+periodSkip, bytesOffset, head, 0);
+                    top+=4;
+                    if(resolved>head){
+                        pending=push(pending, top, offsets[i], bytesOffset+head, resolved-head, 0);
+                        top+=4;
+                    }
+                }else{
+                    romData.get(offsets[i]+skip, bytes, bytesOffset, pieceLength);
+                }
+                offset+=pieceLength;
+                bytesOffset+=pieceLength;
+                length-=pieceLength;
+            }
+        }
+    }
+
+    private static int[] push(int[] pending, int top, int offset, int bytesOffset, int length, int period) {
+        if(top+4>pending.length){
+            pending=Arrays.copyOf(pending, pending.length*2);
+        }
+        pending[top]=offset;
+        pending[top+1]=bytesOffset;
+        pending[top+2]=length;
+        pending[top+3]=period;
+        return pending;
+    }
+
+    /*
+     * Index of the action writing the target offset.
+     */
+    private int find(int offset) {
+        int low=0, high=actions-1;
+        while(low<high){
+            int middle=(low+high+1)>>>1;
+            if(starts[middle]<=offset){
+                low=middle;
+            }else{
+                high=middle-1;
+            }
+        }
+        return low;
+    }
+}
@@ -0,0 +1,198 @@
+/* Apache 2 License, Copyright (c) 2023 Juan Fuentes, SA-IS based on the AtCoder Library implementation */
+package com.github.videogamearchive.rompatcher.formats;
+
+import java.util.Arrays;
+
+/*
+ * Suffix array helpers for the BPS suffix array encoder.
+ * Memory usage is linear, a few ints per symbol.
+ */
+class SuffixArray {
+    private static final int NAIVE_THRESHOLD = 10;
+
+    private SuffixArray() {}
+
+    /*
+     * SA-IS suffix array construction, O(n).
+     * - s: symbols between 0 and upper, both included.
+     */
+    static int[] sais(int[] s, int upper) {
+        int n = s.length;
+        if(n == 0) {
+            return new int[0];
+        }
+        if(n < NAIVE_THRESHOLD) {
+            return naive(s);
+        }
+
+        int[] sa = new int[n];
+        boolean[] ls = new boolean[n];
+        for(int i = n - 2; i >= 0; i--) {
+            ls[i] = (s[i] == s[i + 1])?ls[i + 1]:(s[i] < s[i + 1]);
+        }
+        int[] sumL = new int[upper + 1];
+        int[] sumS = new int[upper + 1];
+        for(int i = 0; i < n; i++) {
+            if(!ls[i]) {
+                sumS[s[i]]++;
+            } else {
+                sumL[s[i] + 1]++;
+            }
+        }
+        for(int i = 0; i <= upper; i++) {
+            sumS[i] += sumL[i];
+            if(i < upper) sumL[i + 1] += sumS[i];
+        }
+
+        int[] lmsMap = new int[n + 1];
+        Arrays.fill(lmsMap, -1);
+        int m = 0;
+        for(int i = 1; i < n; i++) {
+            if(!ls[i - 1] && ls[i]) {
+                lmsMap[i] = m++;
+            }
+        }
+        int[] lms = new int[m];
+        for(int i = 1, j = 0; i < n; i++) {
+            if(!ls[i - 1] && ls[i]) {
+                lms[j++] = i;
+            }
+        }
+
+        induce(s, sa, ls, sumS, sumL, lms);
+
+        if(m > 0) {
+            int[] sortedLms = new int[m];
+            for(int i = 0, j = 0; i < n; i++) {
+                if(lmsMap[sa[i]] != -1) sortedLms[j++] = sa[i];
+            }
+            int[] recS = new int[m];
+            int recUpper = 0;
+            recS[lmsMap[sortedLms[0]]] = 0;
+            for(int i = 1; i < m; i++) {
+                int l = sortedLms[i - 1], r = sortedLms[i];
+                int endL = (lmsMap[l] + 1 < m)?lms[lmsMap[l] + 1]:n;
+                int endR = (lmsMap[r] + 1 < m)?lms[lmsMap[r] + 1]:n;
+                boolean same = true;
+                if(endL - l != endR - r) {
+                    same = false;
+                } else {
+                    while(l < endL && s[l] == s[r]) {
+                        l++;
+                        r++;
+                    }
+                    if(l == n || s[l] != s[r]) same = false;
+                }
+                if(!same) recUpper++;
+                recS[lmsMap[sortedLms[i]]] = recUpper;
+            }
+
+            int[] recSa = sais(recS, recUpper);
+            for(int i = 0; i < m; i++) {
+                sortedLms[i] = lms[recSa[i]];
+            }
+            induce(s, sa, ls, sumS, sumL, sortedLms);
+        }
+        return sa;
+    }
+
+    private static void induce(int[] s, int[] sa, boolean[] ls, int[] sumS, int[] sumL, int[] lms) {
+        int n = s.length;
+        Arrays.fill(sa, -1);
+        int[] buf = sumS.clone();
+        for(int d : lms) {
+            if(d == n) continue;
+            sa[buf[s[d]]++] = d;
+        }
+        System.arraycopy(sumL, 0, buf, 0, buf.length);
+        sa[buf[s[n - 1]]++] = n - 1;
+        for(int i = 0; i < n; i++) {
+            int v = sa[i];
+            if(v >= 1 && !ls[v - 1]) {
+                sa[buf[s[v - 1]]++] = v - 1;
+            }
+        }
+        System.arraycopy(sumL, 0, buf, 0, buf.length);
+        for(int i = n - 1; i >= 0; i--) {
+            int v = sa[i];
+            if(v >= 1 && ls[v - 1]) {
+                sa[--buf[s[v - 1] + 1]] = v - 1;
+            }
+        }
+    }
+
+    private static int[] naive(int[] s) {
+        int n = s.length;
+        Integer[] order = new Integer[n];
+        for(int i = 0; i < n; i++) order[i] = i;
+        Arrays.sort(order, (a, b) -> {
+            if(a.equals(b)) return 0;
+            while(a < n && b < n) {
+                if(s[a] != s[b]) return Integer.compare(s[a], s[b]);
+                a++;
+                b++;
+            }
+            return (a == n)?-1:1;
+        });
+        int[] sa = new int[n];
+        for(int i = 0; i < n; i++) sa[i] = order[i];
+        return sa;
+    }
+
+    /*
+     * Kasai LCP construction, O(n).
+     * lcp[i] is the length of the common prefix of the suffixes sa[i] and sa[i + 1].
+     */
+    static int[] lcp(int[] s, int[] sa) {
+        int n = s.length;
+        int[] lcp = new int[Math.max(n - 1, 0)];
+        int[] rank = new int[n];
+        for(int i = 0; i < n; i++) {
+            rank[sa[i]] = i;
+        }
+        int h = 0;
+        for(int i = 0; i < n; i++) {
+            if(h > 0) h--;
+            if(rank[i] == 0) continue;
+            int j = sa[rank[i] - 1];
+            while(j + h < n && i + h < n && s[j + h] == s[i + h]) h++;
+            lcp[rank[i] - 1] = h;
+        }
+        return lcp;
+    }
+
+    /*
+     * Longest previous factor: for every text offset from "from" onwards, the longest prefix that also starts at a
+     * lower offset, and that offset. Uses the nearest lower offsets on both sides of the suffix array, O(n).
+     * - length/position: output, indexed by offset - from.
+     */
+    static void longestPreviousFactor(int[] sa, int[] lcp, int from, int[] length, int[] position) {
+        int n = sa.length;
+        int[] stack = new int[n];
+        int[] stackLcp = new int[n];
+        int top = -1;
+        for(int r = 0; r < n; r++) {
+            int current = (r > 0)?lcp[r - 1]:0;
+            //suffixes on the stack with a higher offset found their next smaller offset
+            while(top >= 0 && sa[stack[top]] > sa[r]) {
+                previousFactor(sa[stack[top]], current, sa[r], from, length, position);
+                current = Math.min(current, stackLcp[top]);
+                top--;
+            }
+            //previous smaller offset
+            if(top >= 0) {
+                previousFactor(sa[r], current, sa[stack[top]], from, length, position);
+            }
+            top++;
+            stack[top] = r;
+            stackLcp[top] = current;
+        }
+    }
+
+    private static void previousFactor(int offset, int factorLength, int factorOffset, int from, int[] length, int[] position) {
+        if(offset >= from && factorLength > length[offset - from]) {
+            length[offset - from] = factorLength;
+            position[offset - from] = factorOffset;
+        }
+    }
+}
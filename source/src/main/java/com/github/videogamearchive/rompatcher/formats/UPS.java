@@ -2,13 +2,19 @@
 package com.github.videogamearchive.rompatcher.formats;
 
 import com.github.videogamearchive.rompatcher.MarcFile;
+import com.github.videogamearchive.util.Hashes;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import static com.github.videogamearchive.rompatcher.CRC.crc32;
 
 public class UPS {
     public static String UPS_MAGIC="UPS1";
+    private static final int OUTPUT_DIGEST_BLOCK_SIZE=65536;
     private List<UpsRecord> records;
     private int sizeInput, sizeOutput;
     private long checksumInput, checksumOutput;
@@ -19,7 +25,16 @@ public class UPS {
         this.checksumInput=0; this.checksumOutput=0;
     }
     public void addRecord(int relativeOffset,List<Integer> d){
-        this.records.add(new UpsRecord(relativeOffset, d));
+        byte[] data=new byte[d.size()];
+        for(int i=0; i<data.length; i++)
+            data[i]=d.get(i).byteValue();
+        this.addRecord(relativeOffset, data, 0, data.length);
+    }
+    /*
+     * The record keeps a reference to the given array slice, no copy is made.
+     */
+    public void addRecord(int relativeOffset,byte[] data,int dataOffset,int length){
+        this.records.add(new UpsRecord(relativeOffset, data, dataOffset, length));
     }
     public MarcFile export(){
         int patchFileSize=UPS_MAGIC.length();//UPS1 string
@@ -27,7 +42,7 @@ public class UPS {
         patchFileSize+=UPS_getVLVLength(this.sizeOutput); //output file size
         for(int i=0; i<this.records.size(); i++){
             patchFileSize+=UPS_getVLVLength(this.records.get(i).offset);
-            patchFileSize+= this.records.get(i).XORdata.size()+1;
+            patchFileSize+= this.records.get(i).length+1;
         }
         patchFileSize+=12; //input/output/patch checksums
 
@@ -40,8 +55,10 @@ public class UPS {
         UPS_writeVLV(tempFile, this.sizeOutput);
 
         for(int i=0; i<this.records.size(); i++){
-            UPS_writeVLV(tempFile, this.records.get(i).offset);
-            tempFile.writeBytes(this.records.get(i).XORdata);
+            UpsRecord record=this.records.get(i);
+            UPS_writeVLV(tempFile, record.offset);
+            System.arraycopy(record.XORdata, record.XORdataOffset, tempFile._u8array, tempFile.offset, record.length);
+            tempFile.skip(record.length);
             tempFile.writeU8(0x00);
         }
         tempFile.littleEndian=true;
@@ -53,6 +70,13 @@ public class UPS {
     }
     public boolean validateSource(MarcFile romFile){return crc32(romFile)==this.checksumInput;}
     public MarcFile apply(MarcFile romFile,boolean validate){
+        return apply(romFile, validate, null);
+    }
+
+    /*
+     * - outputDigester: when given, also receives the output bytes as they are produced, the output checksum is then validated with it.
+     */
+    public MarcFile apply(MarcFile romFile,boolean validate,Hashes.Digester outputDigester){
         if(validate && !this.validateSource(romFile)){
             throw new Error("error_crc_input");
         }
@@ -68,27 +92,28 @@ public class UPS {
             }
         }
 
-        /* copy original file */
+        /* copy original file, records are then XORed in place, bytes past the original are 0 */
         MarcFile tempFile=new MarcFile(sizeOutput);
-        romFile.copyToFile(tempFile, 0, sizeInput);
-
-        romFile.seek(0);
+        int copySize=Math.min(sizeInput, sizeOutput);
+        if(copySize>0)
+            romFile.copyToFile(tempFile, 0, copySize);
+        byte[] target=tempFile._u8array;
 
+        Hashes.Digester digester=(outputDigester==null && validate)?Hashes.Digester.crc32Only():outputDigester;
+        int digestedOffset=0;
 
-        int nextOffset=0;
         for(int i=0; i<this.records.size(); i++){
             UpsRecord record= this.records.get(i);
             tempFile.skip(record.offset);
-            romFile.skip(record.offset);
+            digestedOffset=digestOutput(digester, tempFile, digestedOffset, Math.min(tempFile.offset, tempFile.fileSize));
 
-            for(int j=0; j<record.XORdata.size(); j++){
-                tempFile.writeU8((romFile.isEOF()?0x00:romFile.readU8()) ^ record.XORdata.get(j));
-            }
-            tempFile.skip(1);
-            romFile.skip(1);
+            xor(target, tempFile.offset, record.XORdata, record.XORdataOffset, record.length);
+            tempFile.skip(record.length+1);
         }
 
-        if(validate && crc32(tempFile)!=this.checksumOutput){
+        digestOutput(digester, tempFile, digestedOffset, -1);
+
+        if(validate && digester.crc32()!=this.checksumOutput){
             throw new Error("error_crc_output");
         }
 
@@ -96,6 +121,24 @@ public class UPS {
     }
 
 
+    /*
+     * Records are applied in offset order, so the bytes before the current record are final.
+     * They are digested once a block is ready, returns the new digested offset.
+     * - finalOffset: end of the final bytes, -1 digests everything left.
+     */
+    private static int digestOutput(Hashes.Digester digester, MarcFile tempFile, int digestedOffset, int finalOffset){
+        if(digester==null){
+            return digestedOffset;
+        }
+        if(finalOffset==-1){
+            finalOffset=tempFile.fileSize;
+        }else if(finalOffset-digestedOffset<OUTPUT_DIGEST_BLOCK_SIZE){
+            return digestedOffset;
+        }
+        digester.update(tempFile._u8array, digestedOffset, finalOffset-digestedOffset);
+        return finalOffset;
+    }
+
     /* encode/decode variable length values, used by UPS file structure */
     public static void UPS_writeVLV(MarcFile file, int data){
         while(true){
@@ -114,7 +157,7 @@ public class UPS {
 
         int shift=1;
         while(true){
-            int x=file.readU8();
+            int x=file.getU8(file.offset++);
 
             if(x==-1)
                 throw new Error("Can't read UPS VLV at 0x"+(file.offset-1));
@@ -151,23 +194,21 @@ public class UPS {
         patch.sizeOutput=UPS_readVLV(file);
 
 
-        int nextOffset=0;
+        //records reference the XOR runs in the patch data, ended by a 0 byte
+        byte[] data=file.save();
         while(file.offset<(file.fileSize-12)){
             int relativeOffset=UPS_readVLV(file);
 
-
-            List<Integer> XORdifferences=new ArrayList<>();
-            while(file.readU8() > 0){
-                XORdifferences.add((Integer) file._lastRead);
-            }
-            patch.addRecord(relativeOffset, XORdifferences);
+            int end=indexOfZero(data, file.offset, file.fileSize);
+            patch.addRecord(relativeOffset, data, file.offset, end-file.offset);
+            file.seek(end+1);
         }
 
         file.littleEndian=true;
-        patch.checksumInput=file.readU32();
-        patch.checksumOutput=file.readU32();
+        patch.checksumInput=file.getU32(file.fileSize-12);
+        patch.checksumOutput=file.getU32(file.fileSize-8);
 
-        if(file.readU32()!=crc32(file, 0, true)){
+        if(file.getU32(file.fileSize-4)!=crc32(file, 0, true)){
             throw new Error("error_crc_patch");
         }
 
@@ -177,33 +218,49 @@ public class UPS {
 
 
 
+    /*
+     * Differing runs are found with Arrays.mismatch, their ends and XOR data are computed 8 bytes at a time.
+     */
     public static UPS createUPSFromFiles(MarcFile original,MarcFile modified){
         UPS patch=new UPS();
         patch.sizeInput=original.fileSize;
         patch.sizeOutput=modified.fileSize;
 
+        byte[] source=original.save();
+        byte[] target=modified.save();
+        int sourceSize=original.fileSize;
+        int targetSize=modified.fileSize;
+        int commonSize=Math.min(sourceSize, targetSize);
+
+        //bytes past the original file are compared against 0
+        int offset=0;
+        int previousEnd=0;
+        while(offset<targetSize){
+            int start;
+            if(offset<commonSize){
+                int mismatch=Arrays.mismatch(source, offset, commonSize, target, offset, commonSize);
+                start=(mismatch==-1)?commonSize:offset+mismatch;
+            }else{
+                start=offset;
+            }
+            if(start>=commonSize){
+                start=indexOfNonZero(target, start, targetSize);
+                if(start==targetSize)
+                    break;
+            }
 
-        int previousSeek=1;
-        while(!modified.isEOF()){
-            int b1=original.isEOF()?0x00:original.readU8();
-            int b2=modified.readU8();
-
-            if(b1!=b2){
-                int currentSeek=modified.offset;
-                List<Integer> XORdata=new ArrayList<>();
-
-                while(b1!=b2){
-                    XORdata.add(b1 ^ b2);
+            int end=(start<commonSize)?indexOfEqual(source, target, start, commonSize):commonSize;
+            if(end==commonSize)
+                end=indexOfZero(target, Math.max(start, commonSize), targetSize);
 
-                    if(modified.isEOF())
-                        break;
-                    b1=original.isEOF()?0x00:original.readU8();
-                    b2=modified.readU8();
-                }
+            byte[] XORdata=new byte[end-start];
+            int commonLength=Math.max(0, Math.min(end, commonSize)-start);
+            System.arraycopy(target, start, XORdata, 0, XORdata.length);
+            xor(XORdata, 0, source, start, commonLength);
 
-                patch.addRecord(currentSeek-previousSeek, XORdata);
-                previousSeek=currentSeek+XORdata.size()+1;
-            }
+            patch.addRecord(start-previousEnd, XORdata, 0, XORdata.length);
+            previousEnd=end+1;
+            offset=end+1;
         }
 
 
@@ -212,13 +269,74 @@ public class UPS {
         return patch;
     }
 
+    /*
+     * Word at a time helpers, bytes are read and written 8 at a time through a little endian long view.
+     */
+    private static final VarHandle LONG_VIEW=MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final long LOW_BITS=0x0101010101010101L;
+    private static final long HIGH_BITS=0x8080808080808080L;
+
+    /* target[targetOffset..] ^= data[dataOffset..] */
+    private static void xor(byte[] target, int targetOffset, byte[] data, int dataOffset, int length){
+        int i=0;
+        for(; i+8<=length; i+=8){
+            long word=(long) LONG_VIEW.get(target, targetOffset+i) ^ (long) LONG_VIEW.get(data, dataOffset+i);
+            LONG_VIEW.set(target, targetOffset+i, word);
+        }
+        for(; i<length; i++)
+            target[targetOffset+i]^=data[dataOffset+i];
+    }
+
+    /* index of the first zero byte in the word, 8 when there are none */
+    private static int firstZeroByte(long word){
+        long zeros=(word-LOW_BITS) & ~word & HIGH_BITS;
+        return Long.numberOfTrailingZeros(zeros)>>>3;
+    }
+
+    private static int indexOfZero(byte[] data, int from, int to){
+        int i=from;
+        for(; i+8<=to; i+=8){
+            int zero=firstZeroByte((long) LONG_VIEW.get(data, i));
+            if(zero<8)
+                return i+zero;
+        }
+        for(; i<to && data[i]!=0; i++);
+        return i;
+    }
+
+    private static int indexOfNonZero(byte[] data, int from, int to){
+        int i=from;
+        for(; i+8<=to; i+=8){
+            long word=(long) LONG_VIEW.get(data, i);
+            if(word!=0)
+                return i+(Long.numberOfTrailingZeros(word)>>>3);
+        }
+        for(; i<to && data[i]==0; i++);
+        return i;
+    }
+
+    private static int indexOfEqual(byte[] source, byte[] target, int from, int to){
+        int i=from;
+        for(; i+8<=to; i+=8){
+            int zero=firstZeroByte((long) LONG_VIEW.get(source, i) ^ (long) LONG_VIEW.get(target, i));
+            if(zero<8)
+                return i+zero;
+        }
+        for(; i<to && source[i]!=target[i]; i++);
+        return i;
+    }
+
     private static class UpsRecord {
         int offset;
-        List<Integer> XORdata;
+        byte[] XORdata;
+        int XORdataOffset;
+        int length;
 
-        public UpsRecord(int offset, List<Integer> XORdata) {
+        public UpsRecord(int offset, byte[] XORdata, int XORdataOffset, int length) {
             this.offset = offset;
             this.XORdata = XORdata;
+            this.XORdataOffset = XORdataOffset;
+            this.length = length;
         }
     }
 }
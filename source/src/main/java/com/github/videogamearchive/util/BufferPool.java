@@ -0,0 +1,77 @@
+package com.github.videogamearchive.util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/*
+ * Heap buffers to be reused between files instead of allocated for each one, grouped in power of two size classes.
+ * Leased buffers can be bigger than requested, callers keep track of the used size. Thread-safe.
+ * Only buffers up to 64 Mb are pooled, bigger ones are allocated with the exact size and left to the GC once released,
+ * so the pool never keeps more than buffersPerSizeClass * 128 Mb.
+ */
+public class BufferPool {
+    private static final int MIN_SIZE_CLASS = 16; // 64 Kb, smaller buffers are cheap to allocate
+    private static final int MAX_SIZE_CLASS = 26; // 64 Mb, rounding bigger buffers up would waste too much memory
+
+    private final ArrayBlockingQueue<byte[]>[] sizeClasses;
+
+    /*
+     * - buffersPerSizeClass: released buffers kept for each size class, the rest are left to the GC.
+     */
+    @SuppressWarnings("unchecked")
+    public BufferPool(int buffersPerSizeClass) {
+        this.sizeClasses = (ArrayBlockingQueue<byte[]>[]) new ArrayBlockingQueue<?>[MAX_SIZE_CLASS + 1];
+        for (int sizeClass = MIN_SIZE_CLASS; sizeClass <= MAX_SIZE_CLASS; sizeClass++) {
+            this.sizeClasses[sizeClass] = new ArrayBlockingQueue<>(buffersPerSizeClass);
+        }
+    }
+
+    /*
+     * Buffer of at least the given size, its contents are undefined.
+     */
+    public byte[] lease(int size) {
+        int sizeClass = sizeClass(size);
+        if (sizeClass > MAX_SIZE_CLASS) {
+            return new byte[size];
+        }
+        byte[] buffer = sizeClasses[sizeClass].poll();
+        return (buffer != null) ? buffer : new byte[1 << sizeClass];
+    }
+
+    public void release(byte[] buffer) {
+        int sizeClass = sizeClass(buffer.length);
+        if (sizeClass <= MAX_SIZE_CLASS && buffer.length == 1 << sizeClass) {
+            sizeClasses[sizeClass].offer(buffer); // dropped when the size class is full
+        }
+    }
+
+    /*
+     * Reads the whole file into a leased buffer, the returned buffer limit is the file size.
+     * Its array should be released once used.
+     */
+    public ByteBuffer read(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("file is too big to be read: " + path);
+            }
+            int size = (int) channel.size();
+            ByteBuffer buffer = ByteBuffer.wrap(lease(size), 0, size);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) == -1) {
+                    release(buffer.array());
+                    throw new EOFException();
+                }
+            }
+            return buffer.flip();
+        }
+    }
+
+    private static int sizeClass(int size) {
+        return Math.max(MIN_SIZE_CLASS, 32 - Integer.numberOfLeadingZeros(size - 1));
+    }
+}
@@ -17,7 +17,19 @@ public final class CSV {
     }
 
     public static List<CSVRecord> read(InputStream in) throws IOException {
-        Reader reader = new InputStreamReader(in);
+        return read(new InputStreamReader(in));
+    }
+
+    /*
+     * Reads a file written by write, in UTF-8.
+     */
+    public static List<CSVRecord> read(Path file) throws IOException {
+        try (Reader reader = new FileReader(file.toFile(), StandardCharsets.UTF_8)) {
+            return read(reader);
+        }
+    }
+
+    private static List<CSVRecord> read(Reader reader) throws IOException {
         CSVFormat format = CSVFormat.DEFAULT.builder()
                 .setHeader()
                 .setSkipHeaderRecord(true)
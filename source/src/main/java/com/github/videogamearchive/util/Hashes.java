@@ -1,66 +1,213 @@
 package com.github.videogamearchive.util;
 
-import java.math.BigInteger;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.zip.CRC32;
 
 public class Hashes {
 
+    private static final int BLOCK_SIZE = 1048576;
+    private static final HexFormat HEX = HexFormat.of();
+
     private Hashes() {
         // Private constructor to make clear that is a non-instantiable utility class
     }
 
+    public record Digests(long size, String crc32, String md5, String sha1) {
+    }
+
     public static String getMd5(byte[] bytes) throws NoSuchAlgorithmException {
-        // Static getInstance method is called with hashing MD5
+        return getMd5(ByteBuffer.wrap(bytes));
+    }
+
+    public static String getMd5(ByteBuffer bytes) throws NoSuchAlgorithmException {
         MessageDigest md = MessageDigest.getInstance("MD5");
+        md.update(bytes.duplicate()); // duplicate, to leave the given buffer position untouched
+        return HEX.formatHex(md.digest());
+    }
+
+    public static String getSha1(byte[] bytes) throws NoSuchAlgorithmException {
+        return getSha1(ByteBuffer.wrap(bytes));
+    }
+
+    public static String getSha1(ByteBuffer bytes) throws NoSuchAlgorithmException {
+        MessageDigest md = MessageDigest.getInstance("SHA-1");
+        md.update(bytes.duplicate()); // duplicate, to leave the given buffer position untouched
+        return HEX.formatHex(md.digest());
+    }
 
-        // digest() method is called to calculate message digest
-        // of an input digest() return array of byte
-        byte[] messageDigest = md.digest(bytes);
+    public static String getCrc32(byte[] bytes) {
+        return getCrc32(ByteBuffer.wrap(bytes));
+    }
+
+    public static String getCrc32(ByteBuffer bytes) {
+        return getCrc32toString(crc32(bytes));
+    }
+
+    /*
+     * CRC32 of the buffer remaining bytes, java.util.zip.CRC32 is a hardware intrinsic for both heap and direct buffers.
+     */
+    public static int crc32(ByteBuffer bytes) {
+        CRC32 crc32 = new CRC32();
+        crc32.update(bytes.duplicate()); // duplicate, to leave the given buffer position untouched
+        return (int) crc32.getValue();
+    }
 
-        // Convert byte array into signum representation
-        BigInteger no = new BigInteger(1, messageDigest);
+    public static String getCrc32toString(long value) {
+        return HEX.toHexDigits((int) value);
+    }
 
-        // Convert message digest into hex value
-        String hashtext = no.toString(16);
-        while (hashtext.length() < 32) {
-            hashtext = "0" + hashtext;
+    /*
+     * Size, CRC32, MD5 and SHA-1 in a single pass.
+     * - workers: when given, each algorithm runs on its own task of the pool, otherwise everything runs on the calling thread.
+     */
+    public static Digests getDigests(ByteBuffer bytes, ForkJoinPool workers) throws NoSuchAlgorithmException {
+        Digester digest = new Digester();
+        if (workers != null) {
+            join(digest.update(bytes, workers));
+        } else {
+            // block by block, so each block is still in cache for the next algorithm
+            for (int position = bytes.position(); position < bytes.limit(); position += BLOCK_SIZE) {
+                digest.update(bytes.slice(position, Math.min(BLOCK_SIZE, bytes.limit() - position)), null);
+            }
         }
-        return hashtext;
+        return digest.digests();
     }
 
-    public static String getSha1(byte[] bytes) throws NoSuchAlgorithmException {
-        // Static getInstance method is called with hashing MD5
-        MessageDigest md = MessageDigest.getInstance("SHA-1");
+    /*
+     * Stream and channel versions read shared blocks, the next block is read while the workers hash the current one.
+     */
+    public static Digests getDigests(InputStream in, ForkJoinPool workers) throws IOException, NoSuchAlgorithmException {
+        return getDigests(block -> {
+            int read;
+            while (block.hasRemaining() && (read = in.read(block.array(), block.arrayOffset() + block.position(), block.remaining())) != -1) {
+                block.position(block.position() + read);
+            }
+        }, workers);
+    }
 
-        // digest() method is called to calculate message digest
-        // of an input digest() return array of byte
-        byte[] messageDigest = md.digest(bytes);
+    public static Digests getDigests(FileChannel channel, ForkJoinPool workers) throws IOException, NoSuchAlgorithmException {
+        return getDigests(block -> {
+            while (block.hasRemaining() && channel.read(block) != -1) {
+                // keep filling the block
+            }
+        }, workers);
+    }
 
-        // Convert byte array into signum representation
-        BigInteger no = new BigInteger(1, messageDigest);
+    private interface BlockReader {
+        void fill(ByteBuffer block) throws IOException;
+    }
 
-        // Convert message digest into hex value
-        String hashtext = no.toString(16);
-        while (hashtext.length() < 40) {
-            hashtext = "0" + hashtext;
+    private static Digests getDigests(BlockReader reader, ForkJoinPool workers) throws IOException, NoSuchAlgorithmException {
+        Digester digest = new Digester();
+        ByteBuffer current = ByteBuffer.allocate(BLOCK_SIZE);
+        ByteBuffer next = ByteBuffer.allocate(BLOCK_SIZE);
+        read(reader, current);
+        while (current.hasRemaining()) {
+            List<ForkJoinTask<?>> pending = digest.update(current, workers);
+            read(reader, next);
+            join(pending);
+            ByteBuffer swap = current;
+            current = next;
+            next = swap;
         }
-        return hashtext;
+        return digest.digests();
     }
 
-    public static String getCrc32(byte[] bytes) {
-        CRC32 crc32 = new CRC32();
-        crc32.update(bytes);
-        return getCrc32toString(crc32.getValue());
+    private static void read(BlockReader reader, ByteBuffer block) throws IOException {
+        block.clear();
+        reader.fill(block);
+        block.flip();
     }
 
-    public static String getCrc32toString(long value) {
-        String hexString = Integer.toHexString((int) value);
-        while (hexString.length() < 8) {
-            hexString = "0" + hexString;
+    private static void join(List<ForkJoinTask<?>> tasks) {
+        for (ForkJoinTask<?> task : tasks) {
+            task.join();
         }
-        return hexString;
     }
 
+    /*
+     * Incremental size, CRC32, MD5 and SHA-1, for data produced piece by piece, like a patch being applied.
+     */
+    public static class Digester {
+        private final CRC32 crc32 = new CRC32();
+        private final MessageDigest md5; // null when only the CRC32 is computed
+        private final MessageDigest sha1;
+        private long size;
+
+        public Digester() throws NoSuchAlgorithmException {
+            this.md5 = MessageDigest.getInstance("MD5");
+            this.sha1 = MessageDigest.getInstance("SHA-1");
+        }
+
+        private Digester(boolean crc32Only) {
+            this.md5 = null;
+            this.sha1 = null;
+        }
+
+        public static Digester crc32Only() {
+            return new Digester(true);
+        }
+
+        public void update(byte[] bytes, int offset, int length) {
+            size += length;
+            crc32.update(bytes, offset, length);
+            if (md5 != null) {
+                md5.update(bytes, offset, length);
+                sha1.update(bytes, offset, length);
+            }
+        }
+
+        public void update(ByteBuffer bytes) {
+            update(bytes, null);
+        }
+
+        /*
+         * Returns the tasks still hashing the block, empty when there are no workers.
+         */
+        private List<ForkJoinTask<?>> update(ByteBuffer block, ForkJoinPool workers) {
+            size += block.remaining();
+            if (workers == null) {
+                crc32.update(block.duplicate());
+                if (md5 != null) {
+                    md5.update(block.duplicate());
+                    sha1.update(block.duplicate());
+                }
+                return List.of();
+            }
+            return List.of(
+                    workers.submit(() -> crc32.update(block.duplicate())),
+                    workers.submit(() -> md5.update(block.duplicate())),
+                    workers.submit(() -> sha1.update(block.duplicate())));
+        }
+
+        public long size() {
+            return size;
+        }
+
+        /*
+         * Sign-extended as CRC.crc32, so it can be compared with the patch checksums directly.
+         */
+        public long crc32() {
+            return (int) crc32.getValue();
+        }
+
+        /*
+         * Finishes the MD5 and SHA-1, the digester can't be used afterwards.
+         */
+        public Digests digests() {
+            if (md5 == null) {
+                throw new IllegalStateException("Only the CRC32 has been computed");
+            }
+            return new Digests(size, getCrc32toString(crc32.getValue()), HEX.formatHex(md5.digest()), HEX.formatHex(sha1.digest()));
+        }
+    }
 }
@@ -1,10 +1,14 @@
 package com.github.videogamearchive.util;
 
+import java.io.EOFException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.attribute.FileTime;
 import java.time.Instant;
 import java.util.ArrayList;
@@ -35,6 +39,57 @@ public class Zip {
         return zipContent.values().iterator().next();
     }
 
+    /*
+     * As readAllBytesOneFile, reading into a buffer leased from the pool, the returned buffer limit is the file size.
+     * Its array should be released to the pool once used.
+     */
+    public static ByteBuffer readOneFile(Path path, BufferPool pool) throws IOException {
+        try(ZipFile zipFile = new ZipFile(path.toString(), StandardCharsets.ISO_8859_1)) {
+            ZipEntry entry = oneFile(zipFile);
+            try (InputStream fileAsInput = zipFile.getInputStream(entry)) {
+                if (entry.getSize() < 0 || entry.getSize() > Integer.MAX_VALUE) { // size unknown, not pooled
+                    return ByteBuffer.wrap(fileAsInput.readAllBytes());
+                }
+                int size = (int) entry.getSize();
+                byte[] buffer = pool.lease(size);
+                if (fileAsInput.readNBytes(buffer, 0, size) != size) {
+                    pool.release(buffer);
+                    throw new EOFException();
+                }
+                return ByteBuffer.wrap(buffer, 0, size);
+            }
+        }
+    }
+
+    /*
+     * As readAllBytesOneFile, streaming the file into target instead of the heap, for files too big for it.
+     */
+    public static void extractOneFile(Path path, Path target) throws IOException {
+        try(ZipFile zipFile = new ZipFile(path.toString(), StandardCharsets.ISO_8859_1)) {
+            ZipEntry entry = oneFile(zipFile);
+            try (InputStream fileAsInput = zipFile.getInputStream(entry)) {
+                Files.copy(fileAsInput, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+    }
+
+    /*
+     * Uncompressed size of the only file, -1 when unknown.
+     */
+    public static long sizeOneFile(Path path) throws IOException {
+        try(ZipFile zipFile = new ZipFile(path.toString(), StandardCharsets.ISO_8859_1)) {
+            return oneFile(zipFile).getSize();
+        }
+    }
+
+    private static ZipEntry oneFile(ZipFile zipFile) {
+        List<? extends ZipEntry> files = zipFile.stream().filter(entry -> !entry.isDirectory()).toList();
+        if (files.size() != 1) {
+            throw new IllegalArgumentException("zip contains " + files.size() + " files.");
+        }
+        return files.get(0);
+    }
+
     public static Map<String, byte[]> readAllBytes(Path path) throws IOException {
         Map<String, byte[]> inMemory = new HashMap<>();
         try(ZipFile zipFile = new ZipFile(path.toString(), StandardCharsets.ISO_8859_1)) {
@@ -51,6 +106,7 @@ public class Zip {
         return inMemory;
     }
 
+    private static final int BLOCK_SIZE = 1048576;
     private static Instant torrentZipModificationTime = Instant.parse("1996-12-24T22:32:00.00Z");
 
     public static void write(Path path,Map<String, byte[]>  content) throws IOException {
@@ -60,9 +116,7 @@ public class Zip {
         for (String key:getTorrentZipEntryOrder(content.keySet())) {
             byte[] bytes = content.get(key);
             String name = key.replace('\'', '/');
-            ZipEntry e = new ZipEntry(name);
-            e.setMethod(ZipEntry.DEFLATED);
-            e.setLastModifiedTime(FileTime.from(torrentZipModificationTime));
+            ZipEntry e = newEntry(name);
             if (name.endsWith("/")) { // Is directory
                 e.setSize(0);
                 e.setCrc(0);
@@ -76,6 +130,45 @@ public class Zip {
         out.close();
     }
 
+    /*
+     * Single file zip written from a buffer in blocks, for contents that are not on the heap, like mapped files.
+     */
+    public static void write(Path path, String name, ByteBuffer content) throws IOException {
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(path.toFile()))) {
+            out.setLevel(9);
+            out.setMethod(ZipOutputStream.DEFLATED);
+            out.putNextEntry(newEntry(name.replace('\'', '/')));
+            ByteBuffer remaining = content.duplicate(); // duplicate, to leave the given buffer position untouched
+            byte[] block = new byte[Math.min(BLOCK_SIZE, remaining.remaining())];
+            while (remaining.hasRemaining()) {
+                int length = Math.min(block.length, remaining.remaining());
+                remaining.get(block, 0, length);
+                out.write(block, 0, length);
+            }
+            out.closeEntry();
+        }
+    }
+
+    /*
+     * Single file zip written from a file, streamed, for contents too big for the heap.
+     */
+    public static void write(Path path, String name, Path content) throws IOException {
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(path.toFile()))) {
+            out.setLevel(9);
+            out.setMethod(ZipOutputStream.DEFLATED);
+            out.putNextEntry(newEntry(name.replace('\'', '/')));
+            Files.copy(content, out);
+            out.closeEntry();
+        }
+    }
+
+    private static ZipEntry newEntry(String name) {
+        ZipEntry e = new ZipEntry(name);
+        e.setMethod(ZipEntry.DEFLATED);
+        e.setLastModifiedTime(FileTime.from(torrentZipModificationTime));
+        return e;
+    }
+
     private static List<String> getTorrentZipEntryOrder(Collection<String> entryNames) {
         List<String> normalizedEntryNames = new ArrayList<>(entryNames.size());
         Map<String, String> normalizedEntryNames2original = new HashMap<>();
@@ -0,0 +1,290 @@
+package com.github.videogamearchive.database;
+
+import com.github.videogamearchive.model.Identifiable;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class DatabaseWalkerTest {
+    Path release = Path.of("..", "database",
+            "Nintendo - Satellaview",
+            "Chrono Trigger - Music Library (Japan).bs",
+            "Chrono Trigger - Music Library (Japan) [T-En by Terminus Traduction (v1.00e)].bs");
+
+    Path tempFile = Path.of("temp-" + System.currentTimeMillis());
+    Path tempManifest = DatabaseManifest.path(tempFile.toFile());
+    Path tempSnapshot = DatabaseSnapshot.path(tempFile.toFile());
+
+    private void deleteDir(File file) {
+        File[] contents = file.listFiles();
+        if (contents != null) {
+            for (File f : contents) {
+                deleteDir(f);
+            }
+        }
+        file.delete();
+    }
+
+    @AfterEach
+    public void cleanup() {
+        if (Files.exists(tempFile)) {
+            deleteDir(tempFile.toFile());
+        }
+        tempManifest.toFile().delete();
+        tempSnapshot.toFile().delete();
+    }
+
+    /*
+     * Systems with games of copies of the same release, plus folders and files the walker ignores.
+     */
+    private void createDatabase() throws IOException {
+        for (int system = 0; system < 2; system++) {
+            for (int game = 0; game < 3; game++) {
+                Path gameFolder = tempFile.resolve("System " + system).resolve("Game " + game);
+                for (int clone = 0; clone < 4; clone++) {
+                    Path cloneFolder = Files.createDirectories(gameFolder.resolve("Release " + clone + " [T-En by Terminus Traduction (v1.00e)].bs"));
+                    Files.copy(release.resolve(DatabaseWalker.ROMHACK_JSON), cloneFolder.resolve(DatabaseWalker.ROMHACK_JSON));
+                    Files.copy(release.resolve(DatabaseWalker.ROMHACK_BPS), cloneFolder.resolve(DatabaseWalker.ROMHACK_BPS));
+                    Files.createDirectories(cloneFolder.resolve(DatabaseWalker.ROMHACK_ORIGINAL).resolve("1"));
+                    Files.createFile(cloneFolder.resolve(DatabaseWalker.ROMHACK_ORIGINAL).resolve("1").resolve("patch.zip"));
+                }
+                Files.createDirectories(gameFolder.resolve("Empty"));
+                Files.createFile(gameFolder.resolve("readme.txt"));
+            }
+        }
+    }
+
+    private List<String> walk(ForkJoinPool workers, boolean concurrent) throws Exception {
+        return walk(workers, concurrent, false, null);
+    }
+
+    private List<String> walk(ForkJoinPool workers, boolean concurrent, boolean validate, DatabaseManifest manifest) throws Exception {
+        List<String> visits = Collections.synchronizedList(new ArrayList<>());
+        DatabaseWalker.processDatabase(tempFile.toFile(), new DatabaseVisitor() {
+            @Override
+            public boolean validate() {
+                return validate;
+            }
+
+            @Override
+            public boolean concurrent() {
+                return concurrent;
+            }
+
+            @Override
+            public void walk(File identifiableFolder, Identifiable identifiable) {
+                visits.add(identifiableFolder.getPath() + " " + identifiable.getClass().getSimpleName());
+            }
+        }, workers, manifest);
+        return visits;
+    }
+
+    @Test
+    public void testParallelWalk() throws Exception {
+        createDatabase();
+        List<String> sequential = walk(null, false);
+        assertEquals(2 + 2 * 3 + 2 * 3 * 4, sequential.size());
+
+        ForkJoinPool workers = new ForkJoinPool(4);
+        try {
+            assertEquals(sequential, walk(workers, false));
+            List<String> concurrent = walk(workers, true);
+            assertEquals(sequential.size(), concurrent.size());
+            assertEquals(new HashSet<>(sequential), new HashSet<>(concurrent));
+        } finally {
+            workers.shutdown();
+        }
+    }
+
+    @Test
+    public void testParallelWalkError() throws Exception {
+        createDatabase();
+        Files.delete(tempFile.resolve("System 1").resolve("Game 2").resolve("Release 3 [T-En by Terminus Traduction (v1.00e)].bs").resolve(DatabaseWalker.ROMHACK_BPS));
+
+        ForkJoinPool workers = new ForkJoinPool(4);
+        try {
+            RuntimeException error = assertThrows(RuntimeException.class, () -> walk(workers, false));
+            assertEquals("Missing romhack.json, romhack.bps or romhack-original folder", error.getMessage());
+        } finally {
+            workers.shutdown();
+        }
+    }
+
+    /*
+     * Records the visits and when it was finished, optionally failing at the given visit.
+     */
+    private static class RecordingVisitor implements DatabaseVisitor {
+        private final List<String> visits = new ArrayList<>();
+        private final int failAt;
+        private boolean finished;
+
+        RecordingVisitor(int failAt) {
+            this.failAt = failAt;
+        }
+
+        @Override
+        public boolean validate() {
+            return false;
+        }
+
+        @Override
+        public void walk(File identifiableFolder, Identifiable identifiable) {
+            if (visits.size() == failAt) {
+                throw new RuntimeException("Failed at " + identifiableFolder.getPath());
+            }
+            visits.add(identifiableFolder.getPath() + " " + identifiable.getClass().getSimpleName());
+        }
+
+        @Override
+        public void finish() {
+            finished = true;
+        }
+    }
+
+    @Test
+    public void testCompositeVisitor() throws Exception {
+        createDatabase();
+        List<String> expected = walk(null, false);
+
+        ForkJoinPool workers = new ForkJoinPool(4);
+        try {
+            RecordingVisitor first = new RecordingVisitor(-1);
+            RecordingVisitor second = new RecordingVisitor(-1);
+            CompositeVisitor composite = new CompositeVisitor(workers, first, second);
+            DatabaseWalker.processDatabase(tempFile.toFile(), composite, workers);
+            composite.finish();
+            assertEquals(expected, first.visits);
+            assertEquals(expected, second.visits);
+            assertTrue(first.finished);
+            assertTrue(second.finished);
+
+            // the failing visitor is not called anymore nor finished, the other one still is
+            RecordingVisitor failing = new RecordingVisitor(5);
+            RecordingVisitor other = new RecordingVisitor(-1);
+            CompositeVisitor failingComposite = new CompositeVisitor(workers, failing, other);
+            DatabaseWalker.processDatabase(tempFile.toFile(), failingComposite, workers);
+            RuntimeException error = assertThrows(RuntimeException.class, failingComposite::finish);
+            assertTrue(error.getMessage().startsWith("Failed at "));
+            assertEquals(expected.subList(0, 5), failing.visits);
+            assertFalse(failing.finished);
+            assertEquals(expected, other.visits);
+            assertTrue(other.finished);
+        } finally {
+            workers.shutdown();
+        }
+    }
+
+    private List<Identifiable> replay(boolean validate, DatabaseSnapshot snapshot) throws Exception {
+        List<Identifiable> identifiables = new ArrayList<>();
+        DatabaseWalker.processDatabase(tempFile.toFile(), new DatabaseVisitor() {
+            @Override
+            public boolean validate() {
+                return validate;
+            }
+
+            @Override
+            public void walk(File identifiableFolder, Identifiable identifiable) {
+                identifiables.add(identifiable);
+            }
+        }, null, null, snapshot);
+        return identifiables;
+    }
+
+    @Test
+    public void testSnapshot() throws Exception {
+        createDatabase();
+        List<Identifiable> expected = replay(false, null);
+
+        DatabaseSnapshot.Writer writer = new DatabaseSnapshot.Writer(tempSnapshot, tempFile.toFile(), false);
+        DatabaseWalker.processDatabase(tempFile.toFile(), writer);
+        writer.finish();
+        DatabaseSnapshot snapshot = DatabaseSnapshot.load(tempSnapshot);
+        assertEquals(expected.size(), snapshot.size());
+        assertEquals(walk(null, false), walk(snapshot));
+
+        // same names, sizes and modification times, garbage on a release is not read while replaying
+        Path romhackJSON = tempFile.resolve("System 1").resolve("Game 0").resolve("Release 3 [T-En by Terminus Traduction (v1.00e)].bs").resolve(DatabaseWalker.ROMHACK_JSON);
+        FileTime modified = Files.getLastModifiedTime(romhackJSON);
+        Files.writeString(romhackJSON, " ".repeat((int) Files.size(romhackJSON)));
+        Files.setLastModifiedTime(romhackJSON, modified);
+        assertEquals(expected, replay(false, snapshot));
+
+        // not validated when compiled, the database is walked
+        assertThrows(RuntimeException.class, () -> replay(true, snapshot));
+
+        // restored with an older modification time, the database is walked
+        Files.setLastModifiedTime(romhackJSON, FileTime.fromMillis(modified.toMillis() - 86400000));
+        assertFalse(snapshot.isCurrent(tempFile.toFile()));
+        assertThrows(RuntimeException.class, () -> replay(false, snapshot));
+        Files.setLastModifiedTime(romhackJSON, modified);
+        assertTrue(snapshot.isCurrent(tempFile.toFile()));
+
+        // a renamed release
+        Path game = tempFile.resolve("System 0").resolve("Game 2");
+        Files.move(game.resolve("Release 1 [T-En by Terminus Traduction (v1.00e)].bs"), game.resolve("Release 9 [T-En by Terminus Traduction (v1.00e)].bs"));
+        assertFalse(snapshot.isCurrent(tempFile.toFile()));
+
+        // from another model, the snapshot is ignored
+        byte[] bytes = Files.readAllBytes(tempSnapshot);
+        bytes[8] ^= 1;
+        Files.write(tempSnapshot, bytes);
+        assertNull(DatabaseSnapshot.load(tempSnapshot));
+    }
+
+    private List<String> walk(DatabaseSnapshot snapshot) throws Exception {
+        List<String> visits = new ArrayList<>();
+        DatabaseWalker.processDatabase(tempFile.toFile(), new DatabaseVisitor() {
+            @Override
+            public boolean validate() {
+                return false;
+            }
+
+            @Override
+            public void walk(File identifiableFolder, Identifiable identifiable) {
+                visits.add(identifiableFolder.getPath() + " " + identifiable.getClass().getSimpleName());
+            }
+        }, null, null, snapshot);
+        return visits;
+    }
+
+    @Test
+    public void testManifest() throws Exception {
+        createDatabase();
+        List<String> expected = walk(null, false);
+
+        DatabaseManifest manifest = DatabaseManifest.load(tempManifest);
+        assertEquals(expected, walk(null, false, true, manifest));
+        manifest.save();
+
+        // same size and modification time, the release is replayed from the manifest without reading it
+        Path romhackJSON = tempFile.resolve("System 0").resolve("Game 1").resolve("Release 2 [T-En by Terminus Traduction (v1.00e)].bs").resolve(DatabaseWalker.ROMHACK_JSON);
+        FileTime modified = Files.getLastModifiedTime(romhackJSON);
+        Files.writeString(romhackJSON, " ".repeat((int) Files.size(romhackJSON)));
+        Files.setLastModifiedTime(romhackJSON, modified);
+        ForkJoinPool workers = new ForkJoinPool(4);
+        try {
+            assertEquals(expected, walk(workers, false, true, DatabaseManifest.load(tempManifest)));
+
+            Files.setLastModifiedTime(romhackJSON, FileTime.fromMillis(modified.toMillis() + 1000));
+            assertThrows(RuntimeException.class, () -> walk(workers, false, true, DatabaseManifest.load(tempManifest)));
+        } finally {
+            workers.shutdown();
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package com.github.videogamearchive.rompatcher;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class CRCTest {
+    Path linearPatch = Path.of("test-data", "Lolo Test ROM v1.1.linear.bps");
+
+    @Test
+    public void testCrc32() throws Exception {
+        MarcFile file = new MarcFile("--123456789--".getBytes(StandardCharsets.US_ASCII));
+        assertEquals((int) 0xcbf43926L, CRC.crc32(file, 2, 9));
+        assertEquals(CRC.crc32(new MarcFile("123456789".getBytes(StandardCharsets.US_ASCII))), CRC.crc32(file, 2, 9));
+    }
+
+    @Test
+    public void testCrc32PatchChecksum() throws Exception {
+        for (MarcFile patch : new MarcFile[] { new MarcFile(linearPatch), MarcFile.map(linearPatch) }) {
+            patch.littleEndian = true;
+            patch.seek(patch.fileSize - 4);
+            assertEquals(patch.readU32(), CRC.crc32(patch, 0, true));
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.github.videogamearchive.rompatcher;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class MarcFileTest {
+    Path linearPatch = Path.of("test-data", "Lolo Test ROM v1.1.linear.bps");
+
+    @Test
+    public void testTypedReads() throws Exception {
+        MarcFile file = new MarcFile(new byte[] { 1, 2, 3, 4, (byte) 0xff });
+        assertEquals(0x0102, file.getU16(0));
+        assertEquals(0x010203, file.getU24(0));
+        assertEquals(0x020304ff, file.getU32(1));
+        file.littleEndian = true;
+        assertEquals(0x0201, file.getU16(0));
+        assertEquals(0x030201, file.getU24(0));
+        assertEquals(0xff040302, file.getU32(1));
+        assertEquals(0, file.offset);
+        assertNull(file._lastRead);
+
+        file.seek(1);
+        assertEquals(file.getU32(1), file.readU32());
+        assertEquals(5, file.offset);
+    }
+
+    @Test
+    public void testReadInto() throws Exception {
+        for (MarcFile patch : new MarcFile[] { new MarcFile(linearPatch), MarcFile.map(linearPatch) }) {
+            byte[] bytes = new byte[6];
+            patch.seek(0);
+            patch.readInto(bytes, 2, 4);
+            assertArrayEquals(new byte[] { 0, 0, 'B', 'P', 'S', '1' }, bytes);
+            assertEquals(4, patch.offset);
+        }
+    }
+
+    @Test
+    public void testSliceView() throws Exception {
+        MarcFile file = new MarcFile("--BPS1\0--".getBytes(StandardCharsets.ISO_8859_1));
+        MarcFile view = file.sliceView(2, 6);
+        assertTrue(view.isMapped());
+        assertEquals(6, view.fileSize);
+        assertEquals("BPS1", view.readString(6));
+        assertEquals(6, view.offset);
+
+        // views share the contents
+        file._u8array[2] = 'X';
+        assertEquals('X', view.getU8(0));
+    }
+
+    @Test
+    public void testWriteBytes() throws Exception {
+        MarcFile file = new MarcFile(4);
+        ByteBuffer bytes = ByteBuffer.wrap(new byte[] { 9, 1, 2, 3 }, 1, 3);
+        file.seek(1);
+        file.writeBytes(bytes);
+        assertArrayEquals(new byte[] { 0, 1, 2, 3 }, file._u8array);
+        assertEquals(4, file.offset);
+        assertEquals(1, bytes.position());
+    }
+}
@@ -0,0 +1,102 @@
+/* Apache 2 License, Copyright (c) 2023 Juan Fuentes, based on Rom Patcher JS by Marc Robledo */
+package com.github.videogamearchive.rompatcher.formats;
+
+import com.github.videogamearchive.rompatcher.CRC;
+import com.github.videogamearchive.rompatcher.MarcFile;
+import com.github.videogamearchive.util.Hashes;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class BPSFilesTest {
+    Path original = Path.of("test-data", "Kirby Test ROM (World).nes");
+    Path modified = Path.of("test-data", "Lolo Test ROM (World) [Themed by Hackermans (v1.1)].nes");
+    Path linearPatch = Path.of("test-data", "Lolo Test ROM v1.1.linear.bps");
+    Path deltaPatch = Path.of("test-data", "Lolo Test ROM v1.1.delta.bps");
+
+    Path tempFile = Path.of("temp-" + System.currentTimeMillis());
+    Path tempPatch = Path.of(tempFile + ".bps");
+    Path tempRom = Path.of(tempFile + ".rom");
+    @AfterEach
+    public void cleanup() throws IOException {
+        Files.deleteIfExists(tempFile);
+        Files.deleteIfExists(tempPatch);
+        Files.deleteIfExists(tempRom);
+    }
+
+    @Test
+    public void testCreateLinear() throws Exception {
+        BPSFiles.createBPSFileLinear(original, modified, tempFile);
+
+        assertArrayEquals(Files.readAllBytes(linearPatch), Files.readAllBytes(tempFile));
+    }
+    @Test
+    public void testApply() throws Exception {
+        byte[] expected = Files.readAllBytes(modified);
+        for (Path patch : new Path[] { linearPatch, deltaPatch }) {
+            Hashes.Digester digester = new Hashes.Digester();
+            BPSFiles.applyBPSFile(patch, original, tempFile, true, digester);
+
+            assertArrayEquals(expected, Files.readAllBytes(tempFile));
+            assertEquals(Hashes.getDigests(ByteBuffer.wrap(expected), null), digester.digests());
+        }
+        assertThrows(Error.class, () -> BPSFiles.applyBPSFile(linearPatch, modified, tempFile, true));
+    }
+    @Test
+    public void testApplyTargetCopies() throws Exception {
+        // copies overlapping their output with a short period and with one longer than a block, and a long target read
+        Random random = new Random(0);
+        byte[] source = new byte[9 << 20];
+        random.nextBytes(source);
+        byte[] literals = new byte[(3 << 20) / 2 + 100];
+        random.nextBytes(literals);
+        Files.write(tempRom, source);
+
+        MarcFile expected = BPS.applyBPSFile(patch(source, literals, 0), new MarcFile(source), false);
+        patch(source, literals, CRC.crc32(expected)).save(tempPatch);
+
+        BPSFiles.applyBPSFile(tempPatch, tempRom, tempFile, true);
+        assertArrayEquals(expected.save(), Files.readAllBytes(tempFile));
+    }
+
+    private static MarcFile patch(byte[] source, byte[] literals, long targetChecksum) throws IOException {
+        int targetSize = 100 + (3 << 20) + (literals.length - 100) + (4 << 20) + 1000 + 1024;
+        MarcFile patchFile = new MarcFile(literals.length + 64);
+        patchFile.littleEndian = true;
+        patchFile.writeString("BPS1");
+        BPS.BPS_writeVLV(patchFile, source.length);
+        BPS.BPS_writeVLV(patchFile, targetSize);
+        BPS.BPS_writeVLV(patchFile, 0);
+        BPS.BPS_writeVLV(patchFile, ((100 - 1) << 2) + BPS.BPS_ACTION_TARGET_READ);
+        patchFile.writeBytes(ByteBuffer.wrap(literals, 0, 100));
+        // from the start of the output, period 100
+        BPS.BPS_writeVLV(patchFile, (((3 << 20) - 1) << 2) + BPS.BPS_ACTION_TARGET_COPY);
+        BPS.BPS_writeVLV(patchFile, BPS.BPS_relativeOffsetData(0));
+        BPS.BPS_writeVLV(patchFile, ((literals.length - 100 - 1) << 2) + BPS.BPS_ACTION_TARGET_READ);
+        patchFile.writeBytes(ByteBuffer.wrap(literals, 100, literals.length - 100));
+        // from the start of the last target read, period 1.5 MB
+        BPS.BPS_writeVLV(patchFile, (((4 << 20) - 1) << 2) + BPS.BPS_ACTION_TARGET_COPY);
+        BPS.BPS_writeVLV(patchFile, BPS.BPS_relativeOffsetData(100));
+        BPS.BPS_writeVLV(patchFile, ((1000 - 1) << 2) + BPS.BPS_ACTION_SOURCE_COPY);
+        BPS.BPS_writeVLV(patchFile, BPS.BPS_relativeOffsetData(5000));
+        BPS.BPS_writeVLV(patchFile, ((1024 - 1) << 2) + BPS.BPS_ACTION_SOURCE_READ);
+        patchFile.writeU32(CRC.crc32(new MarcFile(source)));
+        patchFile.writeU32(targetChecksum);
+        int patchSize = patchFile.offset + 4;
+        patchFile = new MarcFile(Arrays.copyOf(patchFile._u8array, patchSize));
+        patchFile.littleEndian = true;
+        patchFile.seek(patchSize - 4);
+        patchFile.writeU32(CRC.crc32(patchFile, 0, true));
+        return patchFile;
+    }
+}
@@ -1,15 +1,23 @@
 /* Apache 2 License, Copyright (c) 2023 Juan Fuentes, based on Rom Patcher JS by Marc Robledo */
 package com.github.videogamearchive.rompatcher.formats;
 
+import com.github.videogamearchive.rompatcher.CRC;
 import com.github.videogamearchive.rompatcher.MarcFile;
+import com.github.videogamearchive.util.Hashes;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.Test;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
 
 import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class BPSTest {
@@ -65,6 +73,43 @@ public class BPSTest {
         assertArrayEquals(expected, actual);
     }
     @Test
+    public void testApplyLinearStreaming() throws Exception {
+        MarcFile actualModified = BPS.applyBPSFile(new MarcFile(linearPatch), new MarcFile(original), true);
+        Path actualModifiedPath = tempFile;
+        actualModified.save(actualModifiedPath);
+
+        byte[] expected = Files.readAllBytes(modified);
+        byte[] actual = Files.readAllBytes(actualModifiedPath);
+
+        assertArrayEquals(expected, actual);
+    }
+    @Test
+    public void testCreateLinearMapped() throws Exception {
+        BPS bps = BPS.createBPSFromFiles(MarcFile.map(original), MarcFile.map(modified), false);
+        MarcFile export = bps.export();
+        Path testPath = tempFile;
+        export.save(testPath);
+
+        byte[] expected = Files.readAllBytes(linearPatch);
+        byte[] actual = Files.readAllBytes(testPath);
+
+        assertArrayEquals(expected, actual);
+    }
+    @Test
+    public void testApplyLinearMapped() throws Exception {
+        BPS bps = BPS.parseBPSFile(new MarcFile(linearPatch));
+
+        assertTrue(bps.validateSource(MarcFile.map(original)));
+        MarcFile actualModified = bps.apply(MarcFile.map(original), true);
+        Path actualModifiedPath = tempFile;
+        actualModified.save(actualModifiedPath);
+
+        byte[] expected = Files.readAllBytes(modified);
+        byte[] actual = Files.readAllBytes(actualModifiedPath);
+
+        assertArrayEquals(expected, actual);
+    }
+    @Test
     public void testCreateDelta() throws Exception {
         BPS bps = BPS.createBPSFromFiles(new MarcFile(original), new MarcFile(modified), true);
         MarcFile export = bps.export();
@@ -77,6 +122,56 @@ public class BPSTest {
         assertArrayEquals(expected, actual);
     }
     @Test
+    public void testCreateDeltaBounded() throws Exception {
+        BPS bps = BPS.createBPSFromFiles(new MarcFile(original), new MarcFile(modified), 16, 4);
+        MarcFile actualModified = BPS.applyBPSFile(bps.export(), new MarcFile(original), true);
+
+        byte[] expected = Files.readAllBytes(modified);
+        byte[] actual = actualModified.save();
+
+        assertArrayEquals(expected, actual);
+    }
+    @Test
+    public void testCreateDeltaParallel() throws Exception {
+        BPS bps = BPS.createBPSFromFiles(new MarcFile(original), new MarcFile(modified), BPS.DELTA_UNLIMITED_CHAIN_DEPTH, 2, ForkJoinPool.commonPool(), true);
+        MarcFile export = bps.export();
+        Path testPath = tempFile;
+        export.save(testPath);
+
+        byte[] expected = Files.readAllBytes(deltaPatch);
+        byte[] actual = Files.readAllBytes(testPath);
+
+        assertArrayEquals(expected, actual);
+    }
+    @Test
+    public void testCreateDeltaParallelChunks() throws Exception {
+        ForkJoinPool singleThread = new ForkJoinPool(1);
+        ForkJoinPool multiThread = new ForkJoinPool(4);
+        try {
+            MarcFile singleThreadExport = BPS.createBPSFromFiles(new MarcFile(original), new MarcFile(modified), 16, 4, singleThread, 4096).export();
+            MarcFile multiThreadExport = BPS.createBPSFromFiles(new MarcFile(original), new MarcFile(modified), 16, 4, multiThread, 4096).export();
+            assertArrayEquals(singleThreadExport.save(), multiThreadExport.save());
+
+            MarcFile actualModified = BPS.applyBPSFile(multiThreadExport, new MarcFile(original), true);
+            assertArrayEquals(Files.readAllBytes(modified), actualModified.save());
+        } finally {
+            singleThread.shutdown();
+            multiThread.shutdown();
+        }
+    }
+    @Test
+    public void testCreateSuffixArray() throws Exception {
+        BPS bps = BPS.createBPSFromFiles(new MarcFile(original), new MarcFile(modified), BPS.Mode.SuffixArray);
+        MarcFile export = bps.export();
+        MarcFile actualModified = BPS.applyBPSFile(export, new MarcFile(original), true);
+
+        byte[] expected = Files.readAllBytes(modified);
+        byte[] actual = actualModified.save();
+
+        assertArrayEquals(expected, actual);
+        assertTrue(export.fileSize <= Files.size(deltaPatch));
+    }
+    @Test
     public void testParseDelta() throws Exception {
         BPS bps = BPS.parseBPSFile(new MarcFile(deltaPatch));
         MarcFile export = bps.export();
@@ -102,4 +197,123 @@ public class BPSTest {
 
         assertArrayEquals(expected, actual);
     }
+    @Test
+    public void testApplyDeltaStreaming() throws Exception {
+        MarcFile actualModified = BPS.applyBPSFile(new MarcFile(deltaPatch), new MarcFile(original), true);
+        Path actualModifiedPath = tempFile;
+        actualModified.save(actualModifiedPath);
+
+        byte[] expected = Files.readAllBytes(modified);
+        byte[] actual = Files.readAllBytes(actualModifiedPath);
+
+        assertArrayEquals(expected, actual);
+    }
+    @Test
+    public void testApplyDeltaDigester() throws Exception {
+        Hashes.Digester digester = new Hashes.Digester();
+        MarcFile actualModified = BPS.applyBPSFile(new MarcFile(deltaPatch), new MarcFile(original), true, digester);
+
+        byte[] expected = Files.readAllBytes(modified);
+        assertArrayEquals(expected, actualModified.save());
+        assertEquals(Hashes.getDigests(ByteBuffer.wrap(expected), null), digester.digests());
+
+        digester = new Hashes.Digester();
+        BPS.parseBPSFile(new MarcFile(deltaPatch)).apply(new MarcFile(original), true, digester);
+        assertEquals(Hashes.getDigests(ByteBuffer.wrap(expected), null), digester.digests());
+    }
+    @Test
+    public void testApplyInto() throws Exception {
+        byte[] expected = Files.readAllBytes(modified);
+        byte[] output = new byte[expected.length + 1024];
+        for (Path patch : new Path[] { linearPatch, deltaPatch }) {
+            MarcFile actualModified = BPS.applyBPSFile(new MarcFile(patch), new MarcFile(original), true, null, output);
+
+            assertSame(output, actualModified._u8array);
+            assertEquals(expected.length, actualModified.fileSize);
+            assertArrayEquals(expected, actualModified.save());
+        }
+        assertThrows(IllegalArgumentException.class, () -> BPS.applyBPSFile(new MarcFile(linearPatch), new MarcFile(original), true, null, new byte[16]));
+    }
+    @Test
+    public void testReadHeader() throws Exception {
+        for (Path patch : new Path[] { linearPatch, deltaPatch }) {
+            BPS bps = BPS.parseBPSFile(new MarcFile(patch));
+            BPS.Header header = BPS.readHeader(patch);
+
+            assertEquals(bps.sourceSize, header.sourceSize());
+            assertEquals(bps.targetSize, header.targetSize());
+            assertEquals(bps.metaData.length(), header.metaDataLength());
+            assertEquals(bps.sourceChecksum, header.sourceChecksum());
+            assertEquals(bps.targetChecksum, header.targetChecksum());
+            assertEquals(bps.patchChecksum, header.patchChecksum());
+        }
+    }
+
+    @Test
+    public void testReadHeaderTruncated() throws Exception {
+        // shorter than the smallest header and footer
+        byte[] patch = Files.readAllBytes(linearPatch);
+        Files.write(tempFile, Arrays.copyOf(patch, 18));
+        Error error = assertThrows(Error.class, () -> BPS.readHeader(tempFile));
+        assertEquals("error_bps_header", error.getMessage());
+
+        // the target size VLV runs into the footer
+        Files.write(tempFile, Arrays.copyOf(patch, 20));
+        error = assertThrows(Error.class, () -> BPS.readHeader(tempFile));
+        assertEquals("error_bps_header", error.getMessage());
+    }
+
+    @Test
+    public void testCompose() throws Exception {
+        Path stacked = Path.of("test-data", "Lolo Test ROM - Cool Font (World) [Themed by Hackermans (v1.1)] [Reskin by Unknown (vUnknown)].nes");
+        BPS second = BPS.createBPSFromFiles(new MarcFile(modified), new MarcFile(stacked), BPS.Mode.Delta);
+        for (Path patch : new Path[]{linearPatch, deltaPatch}) {
+            BPS first = BPS.parseBPSFile(new MarcFile(patch));
+            BPS composed = BPS.parseBPSFile(BPS.compose(first, second).export());
+
+            byte[] expected = Files.readAllBytes(stacked);
+            byte[] actual = composed.apply(new MarcFile(original), true)._u8array;
+
+            assertArrayEquals(expected, actual);
+        }
+    }
+    @Test
+    public void testVLV() throws Exception {
+        long[] values = { 0, 1, 127, 128, 16511, 16512, Integer.MAX_VALUE, 1L << 32, Long.MAX_VALUE };
+        MarcFile file = new MarcFile(values.length * 10);
+        for (long value : values) {
+            BPS.BPS_writeVLV(file, value);
+        }
+        file.seek(0);
+        for (long value : values) {
+            assertEquals(value, BPS.BPS_readVLV(file));
+        }
+
+        // 11 bytes without an end mark don't fit on a long
+        MarcFile overflow = new MarcFile(new byte[] { 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, (byte) 0x80 });
+        assertThrows(Error.class, () -> BPS.BPS_readVLV(overflow));
+    }
+    @Test
+    public void testLongSourceRead() throws Exception {
+        // a source read over 2^29 bytes, its action VLV doesn't fit on an int
+        int size = 1 << 30;
+        MarcFile patchFile = new MarcFile(32);
+        patchFile.littleEndian = true;
+        patchFile.writeString("BPS1");
+        BPS.BPS_writeVLV(patchFile, size);
+        BPS.BPS_writeVLV(patchFile, size);
+        BPS.BPS_writeVLV(patchFile, 0);
+        BPS.BPS_writeVLV(patchFile, (long) (size - 1) << 2);
+        patchFile.writeU32(0);
+        patchFile.writeU32(0);
+        int patchSize = patchFile.offset + 4;
+        patchFile = new MarcFile(Arrays.copyOf(patchFile._u8array, patchSize));
+        patchFile.littleEndian = true;
+        patchFile.seek(patchSize - 4);
+        patchFile.writeU32(CRC.crc32(patchFile, 0, true));
+
+        BPS bps = BPS.parseBPSFile(patchFile);
+        assertEquals(size, (int) bps.actions.get(0).length);
+        assertArrayEquals(patchFile._u8array, bps.export()._u8array);
+    }
 }
@@ -6,8 +6,11 @@ import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.Test;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
 
 import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 
@@ -61,4 +64,36 @@ public class IPSTest {
 
         assertArrayEquals(expected, actual);
     }
+
+    @Test
+    public void testApplyOverlappingRecords() throws Exception {
+        Random random = new Random(0);
+        byte[] rom = new byte[4096];
+        random.nextBytes(rom);
+        byte[] expected = Arrays.copyOf(rom, 4200);
+
+        int expectedSize = rom.length;
+        IPS ips = new IPS();
+        for (int i = 0; i < 500; i++) {
+            int offset = random.nextInt(4096);
+            int length = 1 + random.nextInt(100);
+            expectedSize = Math.max(expectedSize, offset + length);
+            if (random.nextBoolean()) {
+                int value = random.nextInt(256);
+                ips.addRLERecord(offset, length, value);
+                Arrays.fill(expected, offset, offset + length, (byte) value);
+            } else {
+                byte[] data = new byte[length];
+                random.nextBytes(data);
+                ips.addSimpleRecord(offset, ByteBuffer.wrap(data));
+                System.arraycopy(data, 0, expected, offset, length);
+            }
+        }
+
+        MarcFile actualModified = ips.apply(new MarcFile(rom));
+        MarcFile reparsedModified = IPS.parseIPSFile(ips.export()).apply(new MarcFile(rom));
+
+        assertArrayEquals(Arrays.copyOf(expected, expectedSize), actualModified.save());
+        assertArrayEquals(actualModified.save(), reparsedModified.save());
+    }
 }
@@ -0,0 +1,82 @@
+/* Apache 2 License, Copyright (c) 2023 Juan Fuentes, based on Rom Patcher JS by Marc Robledo */
+package com.github.videogamearchive.rompatcher.formats;
+
+import com.github.videogamearchive.rompatcher.MarcFile;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class PatchedRomViewTest {
+    Path original = Path.of("test-data", "Kirby Test ROM (World).nes");
+    Path modified = Path.of("test-data", "Lolo Test ROM (World) [Themed by Hackermans (v1.1)].nes");
+    Path linearPatch = Path.of("test-data", "Lolo Test ROM v1.1.linear.bps");
+    Path deltaPatch = Path.of("test-data", "Lolo Test ROM v1.1.delta.bps");
+
+    @Test
+    public void testRead() throws Exception {
+        byte[] expected = Files.readAllBytes(modified);
+        for (Path patch : new Path[] { linearPatch, deltaPatch }) {
+            PatchedRomView view = new PatchedRomView(MarcFile.map(patch), MarcFile.map(original), true);
+
+            assertEquals(expected.length, view.size());
+            assertArrayEquals(expected, view.read(0, view.size()));
+            assertArrayEquals(Arrays.copyOfRange(expected, 0, 16), view.read(0, 16));
+            assertEquals(expected[expected.length - 1] & 0xff, view.getU8(expected.length - 1));
+            assertThrows(IndexOutOfBoundsException.class, () -> view.read(expected.length - 1, 2));
+        }
+    }
+
+    @Test
+    public void testReadTargetCopies() throws Exception {
+        // repeated blocks and runs, so the delta encoder chains overlapping target copies
+        Random random = new Random(1);
+        byte[] source = new byte[65536];
+        random.nextBytes(source);
+        byte[] target = new byte[262144];
+        for (int offset = 0; offset < target.length; offset += 4096) {
+            if (random.nextBoolean()) {
+                Arrays.fill(target, offset, offset + 4096, (byte) random.nextInt(4));
+            } else {
+                int from = random.nextInt(Math.max(offset, 1));
+                System.arraycopy((offset == 0) ? source : target, from, target, offset, 64);
+                target[offset + random.nextInt(64)] ^= 1;
+            }
+        }
+        MarcFile patch = BPS.createBPSFromFiles(new MarcFile(source), new MarcFile(target), BPS.Mode.Delta).export();
+
+        PatchedRomView view = new PatchedRomView(patch, new MarcFile(source), true);
+        assertArrayEquals(target, view.read(0, target.length));
+        for (int i = 0; i < 1000; i++) {
+            int offset = random.nextInt(target.length);
+            int length = random.nextInt(Math.min(8192, target.length - offset) + 1);
+            assertArrayEquals(Arrays.copyOfRange(target, offset, offset + length), view.read(offset, length));
+        }
+    }
+
+    @Test
+    public void testReadFills() throws Exception {
+        // long runs, the linear encoder writes them as target copies of period 1
+        Random random = new Random(2);
+        byte[] source = new byte[4096];
+        byte[] target = new byte[3 << 20];
+        random.nextBytes(target);
+        Arrays.fill(target, 4096, (1 << 20) + 4096, (byte) 7);
+        Arrays.fill(target, 2 << 20, (5 << 19) + 3, (byte) 0);
+
+        MarcFile patch = BPS.createBPSFromFiles(new MarcFile(source), new MarcFile(target), BPS.Mode.Linear).export();
+        PatchedRomView view = new PatchedRomView(patch, new MarcFile(source), true);
+        assertArrayEquals(target, view.read(0, target.length));
+        for (int i = 0; i < 1000; i++) {
+            int offset = random.nextInt(target.length);
+            int length = random.nextInt(Math.min(1 << 20, target.length - offset) + 1);
+            assertArrayEquals(Arrays.copyOfRange(target, offset, offset + length), view.read(offset, length));
+        }
+    }
+}
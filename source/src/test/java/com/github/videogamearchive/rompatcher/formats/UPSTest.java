@@ -2,14 +2,18 @@
 package com.github.videogamearchive.rompatcher.formats;
 
 import com.github.videogamearchive.rompatcher.MarcFile;
+import com.github.videogamearchive.util.Hashes;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.Test;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Arrays;
 
 import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
 
 public class UPSTest {
     Path original = Path.of("test-data", "Kirby Test ROM (World).nes");
@@ -62,4 +66,29 @@ public class UPSTest {
 
         assertArrayEquals(expected, actual);
     }
+    @Test
+    public void testApplyDigester() throws Exception {
+        UPS ups = UPS.parseUPSFile(new MarcFile(patch));
+
+        Hashes.Digester digester = new Hashes.Digester();
+        MarcFile actualModified = ups.apply(new MarcFile(original), true, digester);
+
+        byte[] expected = Files.readAllBytes(modified);
+        assertArrayEquals(expected, actualModified.save());
+        assertEquals(Hashes.getDigests(ByteBuffer.wrap(expected), null), digester.digests());
+    }
+    @Test
+    public void testCreateApplyResized() throws Exception {
+        byte[] originalBytes = Files.readAllBytes(original);
+        byte[] modifiedBytes = Files.readAllBytes(modified);
+        for (int size : new int[] { modifiedBytes.length - 1000, modifiedBytes.length + 1000 }) {
+            byte[] resized = Arrays.copyOf(modifiedBytes, size);
+            Arrays.fill(resized, Math.max(size - 100, 0), size, (byte) 0x55);
+
+            UPS ups = UPS.parseUPSFile(UPS.createUPSFromFiles(new MarcFile(originalBytes), new MarcFile(resized)).export());
+            MarcFile actualModified = ups.apply(new MarcFile(originalBytes), true);
+
+            assertArrayEquals(resized, actualModified.save());
+        }
+    }
 }
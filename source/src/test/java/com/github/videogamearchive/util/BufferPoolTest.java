@@ -0,0 +1,63 @@
+package com.github.videogamearchive.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+public class BufferPoolTest {
+    Path original = Path.of("test-data", "Kirby Test ROM (World).nes");
+    Path originalZip = Path.of("test-data", "Kirby Test ROM (World).zip");
+
+    @Test
+    public void testLease() {
+        BufferPool pool = new BufferPool(1);
+        byte[] buffer = pool.lease(100000);
+        assertEquals(131072, buffer.length);
+        pool.release(buffer);
+        assertSame(buffer, pool.lease(70000));
+
+        // size class full, the second buffer is dropped
+        byte[] other = pool.lease(131072);
+        pool.release(buffer);
+        pool.release(other);
+        assertSame(buffer, pool.lease(131072));
+        assertNotSame(other, pool.lease(131072));
+
+        // not a pool buffer
+        pool.release(new byte[100000]);
+        assertEquals(131072, pool.lease(100000).length);
+    }
+
+    @Test
+    public void testLeaseNotPooled() {
+        BufferPool pool = new BufferPool(1);
+        // over the biggest size class, exact size and not kept
+        byte[] buffer = pool.lease(70000000);
+        assertEquals(70000000, buffer.length);
+        pool.release(buffer);
+        assertNotSame(buffer, pool.lease(70000000));
+    }
+
+    @Test
+    public void testRead() throws Exception {
+        BufferPool pool = new BufferPool(1);
+        byte[] expected = Files.readAllBytes(original);
+
+        ByteBuffer buffer = pool.read(original);
+        assertEquals(expected.length, buffer.limit());
+        assertArrayEquals(expected, Arrays.copyOf(buffer.array(), buffer.limit()));
+        pool.release(buffer.array());
+
+        ByteBuffer unzipped = Zip.readOneFile(originalZip, pool);
+        assertSame(buffer.array(), unzipped.array());
+        assertArrayEquals(expected, Arrays.copyOf(unzipped.array(), unzipped.limit()));
+    }
+}
@@ -0,0 +1,55 @@
+package com.github.videogamearchive.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class HashesTest {
+    Path rom = Path.of("test-data", "Super Mario Land 2 - 6 Golden Coins (USA, Europe).gb");
+
+    @Test
+    public void testHex() throws Exception {
+        byte[] bytes = "abc".getBytes(StandardCharsets.US_ASCII);
+        assertEquals("352441c2", Hashes.getCrc32(bytes));
+        assertEquals("900150983cd24fb0d6963f7d28e17f72", Hashes.getMd5(bytes));
+        assertEquals("a9993e364706816aba3e25717850c26c9cd0d89d", Hashes.getSha1(bytes));
+        assertEquals("0000002a", Hashes.getCrc32toString(42));
+    }
+
+    @Test
+    public void testDigests() throws Exception {
+        byte[] bytes = Files.readAllBytes(rom);
+        Hashes.Digests expected = new Hashes.Digests(bytes.length, Hashes.getCrc32(bytes), Hashes.getMd5(bytes), Hashes.getSha1(bytes));
+
+        assertEquals(expected, Hashes.getDigests(ByteBuffer.wrap(bytes), null));
+        assertEquals(expected, Hashes.getDigests(ByteBuffer.wrap(bytes), ForkJoinPool.commonPool()));
+        try (InputStream in = Files.newInputStream(rom)) {
+            assertEquals(expected, Hashes.getDigests(in, null));
+        }
+        try (FileChannel channel = FileChannel.open(rom)) {
+            assertEquals(expected, Hashes.getDigests(channel, ForkJoinPool.commonPool()));
+        }
+    }
+
+    @Test
+    public void testDigestsBlocks() throws Exception {
+        byte[] bytes = new byte[2 * 1048576 + 123];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) (i * 31 + (i >> 13));
+        }
+        Hashes.Digests expected = new Hashes.Digests(bytes.length, Hashes.getCrc32(bytes), Hashes.getMd5(bytes), Hashes.getSha1(bytes));
+
+        assertEquals(expected, Hashes.getDigests(ByteBuffer.wrap(bytes), null));
+        assertEquals(expected, Hashes.getDigests(new ByteArrayInputStream(bytes), null));
+        assertEquals(expected, Hashes.getDigests(new ByteArrayInputStream(bytes), ForkJoinPool.commonPool()));
+    }
+}
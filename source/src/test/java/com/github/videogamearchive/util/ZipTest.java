@@ -5,6 +5,7 @@ import org.junit.jupiter.api.Test;
 import org.opentest4j.AssertionFailedError;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Map;
@@ -51,6 +52,46 @@ public class ZipTest {
         assertArrayEquals(expected, actual);
     }
 
+    @Test
+    public void testZipBuffer() throws IOException {
+        byte[] expected = Files.readAllBytes(original);
+        String name = original.getName(original.getNameCount() - 1).toString();
+
+        Path testZip = tempFileZip;
+        Zip.write(testZip, name, ByteBuffer.wrap(expected));
+        byte[] actual = Zip.readAllBytes(testZip).get(name);
+        assertArrayEquals(expected, actual);
+
+        Zip.write(testZip, Map.of(name, expected));
+        byte[] expectedZip = Files.readAllBytes(testZip);
+        Zip.write(testZip, name, ByteBuffer.wrap(expected));
+        assertArrayEquals(expectedZip, Files.readAllBytes(testZip));
+    }
+
+    @Test
+    public void testZipFile() throws IOException {
+        String name = original.getName(original.getNameCount() - 1).toString();
+
+        Path testZip = tempFileZip;
+        Zip.write(testZip, Map.of(name, Files.readAllBytes(original)));
+        byte[] expectedZip = Files.readAllBytes(testZip);
+        Zip.write(testZip, name, original);
+        assertArrayEquals(expectedZip, Files.readAllBytes(testZip));
+    }
+
+    @Test
+    public void testExtractOneFile() throws IOException {
+        Path testFile = Path.of(tempFileZip + ".nes");
+        try {
+            Zip.extractOneFile(originalZip, testFile);
+            assertArrayEquals(Files.readAllBytes(original), Files.readAllBytes(testFile));
+            assertEquals(Files.size(original), Zip.sizeOneFile(originalZip));
+            assertThrows(IllegalArgumentException.class, () -> Zip.extractOneFile(zip1, testFile));
+        } finally {
+            Files.deleteIfExists(testFile);
+        }
+    }
+
     @Test /* TorrentZIp binary compatibility fails **/
     public void zipEquals() throws IOException {
         byte[] toZip = Files.readAllBytes(original);